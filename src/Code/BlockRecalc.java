@@ -0,0 +1,221 @@
+package Code;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A recalculation of a set of cells by blocks. The cells are grouped by dependency level (cells of one level
+ * never depend on each other), and each run of consecutive rows of one column sharing a formula template
+ * (a filled-down formula, see FormulaTemplate) in a level is computed as a block: the tree of the template is
+ * run once, one operator at a time over whole primitive arrays (see ColumnKernels).
+ * The range aggregates of a block are queried row by row from the column indexes (see CellRange.query).
+ * The results of a block are stored at once, updating the column index once (see Ex2Sheet.writeBlock).
+ * Other cells, and the rows of a block whose result is NaN (which may hide a division by zero),
+ * are computed one by one.
+ */
+public class BlockRecalc {
+    /** the kind of a row of a block which must be computed on its own. */
+    static final int RECOMPUTE = -1;
+    private static final int MIN_BLOCK = 8; // shorter runs are computed cell by cell
+
+    private final Ex2Sheet sheet;
+    private final DependencyGraph graph;
+    private final int[] cells;
+    private final int n;
+    private final IntConsumer evaluate;
+
+    // scratch space of the block being computed, grown as needed
+    private double[][] buffers = new double[0][]; // by depth in the tree
+    private byte[] rowKinds = new byte[0];
+    private int length = 0;
+
+    /**
+     * @param sheet the sheet of the cells.
+     * @param graph the dependency graph of the sheet (must not change while running).
+     * @param cells the cells to compute (the first n entries), in evaluation order, none of them on a cycle.
+     * @param evaluate computes a single cell, given its id.
+     */
+    public BlockRecalc(Ex2Sheet sheet, DependencyGraph graph, int[] cells, int n, IntConsumer evaluate) {
+        this.sheet = sheet;
+        this.graph = graph;
+        this.cells = cells;
+        this.n = n;
+        this.evaluate = evaluate;
+    }
+
+    /**
+     * Computes all the cells.
+     * @return the number of cells which were computed in blocks.
+     */
+    public int run() {
+        int stamp = graph.index(cells, n);
+        int[] level = new int[n];
+        int[] areaLevel = new int[graph.aggregates()]; // by aggregate: the highest level of a cell of the set in its area
+        Arrays.fill(areaLevel, -1);
+        int levels = 0;
+        for (int i = 0; i < n; i++) {
+            for (int p : graph.precedents(cells[i])) {
+                int q = graph.position(p, stamp);
+                if (q >= 0) level[i] = Math.max(level[i], level[q] + 1); // q < i, in evaluation order
+            }
+            for (int a : graph.ranges(cells[i])) {
+                level[i] = Math.max(level[i], areaLevel[a] + 1); // so are the cells of the set in the area
+            }
+            int l = level[i];
+            graph.forEachAggregateAt(cells[i], a -> areaLevel[a] = Math.max(areaLevel[a], l));
+            levels = Math.max(levels, level[i] + 1);
+        }
+        int[] starts = new int[levels + 1];
+        for (int i = 0; i < n; i++) {
+            starts[level[i] + 1]++;
+        }
+        for (int l = 0; l < levels; l++) {
+            starts[l + 1] += starts[l];
+        }
+        int[] next = Arrays.copyOf(starts, levels);
+        long[] sorted = new long[n]; // packed coordinates (see Ex2Sheet.pack)
+        for (int i = 0; i < n; i++) {
+            sorted[next[level[i]]++] = Ex2Sheet.pack(sheet.xOf(cells[i]), sheet.yOf(cells[i]));
+        }
+
+        int blocked = 0;
+        for (int l = 0; l < levels; l++) {
+            int from = starts[l], to = starts[l + 1];
+            Arrays.sort(sorted, from, to); // by column, then by row
+            for (int i = from; i < to; ) {
+                int x = Ex2Sheet.unpackX(sorted[i]), y = Ex2Sheet.unpackY(sorted[i]), j = i + 1;
+                FormulaTemplate template = template(x, y);
+                if (template != null) {
+                    while (j < to && sorted[j] == sorted[j - 1] + 1 && template(x, y + j - i) == template) {
+                        j++; // the next row of the same column
+                    }
+                }
+                if (j - i >= MIN_BLOCK) {
+                    computeBlock(x, y, j - i, template);
+                    blocked += j - i;
+                } else {
+                    for (int c = i; c < j; c++) {
+                        evaluate.accept(sheet.getStore().slot(Ex2Sheet.unpackX(sorted[c]), Ex2Sheet.unpackY(sorted[c])));
+                    }
+                }
+                i = j;
+            }
+        }
+        return blocked;
+    }
+
+    // the template of a valid formula in the x,y cell, or null
+    private FormulaTemplate template(int x, int y) {
+        int type = sheet.getStore().type(x, y);
+        if (type == Ex2Utils.NUMBER || type == Ex2Utils.TEXT) return null; // without building the cell
+        SCell cell = sheet.getStore().cell(x, y);
+        FormulaPlan plan = cell == null ? null : cell.getPlan();
+        return plan != null && plan.isValid() ? plan.getTemplate() : null;
+    }
+
+    // computes rows y..y+len-1 of column x, which all have the given template
+    private void computeBlock(int x, int y, int len, FormulaTemplate template) {
+        reserve(len);
+        byte[] kinds = rowKinds;
+        Arrays.fill(kinds, 0, len, CellValue.NUMBER);
+
+        // the kinds of the referenced values, checked as SCell.evaluate does: a cycle error first, then any other error
+        for (int r = 0; r < template.size(); r++) {
+            int rx = x + template.refDx(r), dy = template.refDy(r);
+            for (int i = 0; i < len; i++) {
+                int ry = y + i + dy;
+                check(kinds, i, sheet.isIn(rx, ry) ? sheet.storedKind(rx, ry) : CellValue.ERR_FORM);
+            }
+        }
+        // not by the kernels: a running sum over the rows would add the values in another order than a query does,
+        // so its results could differ from the cell by cell path in the last bits (a query is O(log n) anyway)
+        double[][] ranges = new double[template.ranges()][];
+        EvalContext ctx = EvalContext.current();
+        for (int r = 0; r < ranges.length; r++) {
+            ranges[r] = new double[len];
+            for (int i = 0; i < len; i++) {
+                CellRange range = sheet.getStore().cell(x, y + i).getPlan().range(r);
+                if (!range.isIn(sheet)) {
+                    check(kinds, i, CellValue.ERR_FORM);
+                    continue;
+                }
+                range.query(sheet, ctx);
+                check(kinds, i, range.kind(ctx));
+                ranges[r][i] = range.value(ctx);
+            }
+        }
+
+        run(template, ranges, x, y);
+        double[] result = buffers[0];
+        for (int i = 0; i < len; i++) {
+            if (kinds[i] == CellValue.NUMBER && result[i] != result[i]) {
+                kinds[i] = RECOMPUTE;
+            }
+        }
+        sheet.writeBlock(x, y, len, kinds, result);
+        for (int i = 0; i < len; i++) {
+            if (kinds[i] == RECOMPUTE) {
+                evaluate.accept(sheet.getStore().slot(x, y + i));
+            }
+        }
+    }
+
+    private static void check(byte[] kinds, int i, int kind) {
+        if (kind == CellValue.ERR_CYCLE) {
+            kinds[i] = CellValue.ERR_CYCLE;
+        } else if (kind != CellValue.NUMBER && kinds[i] != CellValue.ERR_CYCLE) {
+            kinds[i] = CellValue.ERR_FORM;
+        }
+    }
+
+    // runs the postfix program of the template over all the rows of the block, with a buffer per stack entry:
+    // the result is left in the buffer of depth 0
+    private void run(FormulaTemplate template, double[][] ranges, int x, int y) {
+        int depth = 0;
+        for (FormulaNode node : template.program()) {
+            switch (node.op) {
+                case FormulaNode.NUMBER:
+                    Arrays.fill(buffer(depth++), 0, length, node.number);
+                    break;
+                case FormulaNode.REF:
+                    double[] out = buffer(depth++);
+                    if (node.ref >= template.size()) {
+                        System.arraycopy(ranges[node.ref - template.size()], 0, out, 0, length);
+                        break;
+                    }
+                    int rx = x + template.refDx(node.ref), from = y + template.refDy(node.ref);
+                    if (rx < 0 || rx >= sheet.width()) break; // every row is an error
+                    // rows referring outside of the sheet are errors, only the rest is copied
+                    int skip = Math.max(0, -from), end = Math.min(length, sheet.height() - from);
+                    if (skip < end) {
+                        sheet.getStore().copyValues(rx, from + skip, out, skip, end - skip);
+                    }
+                    break;
+                case FormulaNode.NEG:
+                    ColumnKernels.neg(buffer(depth - 1), length);
+                    break;
+                default:
+                    depth--;
+                    ColumnKernels.apply(node.op, buffer(depth - 1), buffer(depth), length);
+            }
+        }
+    }
+
+    private void reserve(int len) {
+        length = len;
+        if (rowKinds.length < len) {
+            rowKinds = new byte[len];
+            Arrays.fill(buffers, null);
+        }
+    }
+
+    private double[] buffer(int depth) {
+        if (depth >= buffers.length) {
+            buffers = Arrays.copyOf(buffers, depth + 4);
+        }
+        if (buffers[depth] == null || buffers[depth].length < length) {
+            buffers[depth] = new double[rowKinds.length];
+        }
+        return buffers[depth];
+    }
+}
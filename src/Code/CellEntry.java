@@ -27,8 +27,7 @@ public class CellEntry implements Index2D {
 
     @Override
     public String toString() {
-        // Convert the x-coordinate to a letter (A-Z) and combine it with y-coordinate
-        char column = (char) ('A' + x);
-        return column + Integer.toString(y);
+        // Convert the x-coordinate to its column name (A..Z, AA...) and combine it with y-coordinate
+        return Ex2Sheet.columnName(x) + y;
     }
 }
@@ -0,0 +1,109 @@
+package Code;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from the packed coordinates of cells (see Ex2Sheet.pack) to ints (>= 0), with no boxing, used by the
+ * stores which keep only some of the cells of a sheet.
+ * Open addressing with linear probing: a removal moves the following entries of its probe sequence back instead of
+ * leaving a tombstone, so removed keys take no room and lookups never probe past them.
+ */
+final class CellKeyMap {
+    private long[] keys = newKeys(16); // Ex2Sheet.NOT_A_CELL for a free entry
+    private int[] values = new int[16];
+    private int size = 0;
+    private int shift = 64 - 4; // keys.length == 1 << (64 - shift)
+
+    /**
+     * @return the value of key, or -1 if it has none.
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == Ex2Sheet.NOT_A_CELL) return -1;
+        }
+    }
+
+    /**
+     * Sets the value of key, the table doubles once it is half full.
+     */
+    void put(long key, int value) {
+        int mask = keys.length - 1;
+        int i = hash(key);
+        while (keys[i] != Ex2Sheet.NOT_A_CELL && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == Ex2Sheet.NOT_A_CELL) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                put(key, value);
+                return;
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Removes key.
+     * @return the value it had, or -1 if it had none.
+     */
+    int remove(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key);
+        while (keys[i] != key) {
+            if (keys[i] == Ex2Sheet.NOT_A_CELL) return -1;
+            i = (i + 1) & mask;
+        }
+        int value = values[i];
+        // fills the hole at i with the next entry which cannot be found past it: one whose home is not in (i, j]
+        for (int j = (i + 1) & mask; keys[j] != Ex2Sheet.NOT_A_CELL; j = (j + 1) & mask) {
+            if (((j - hash(keys[j])) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = Ex2Sheet.NOT_A_CELL;
+        size--;
+        return value;
+    }
+
+    /**
+     * @return the number of keys in the map.
+     */
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = newKeys(oldKeys.length * 2);
+        values = new int[oldValues.length * 2];
+        shift--;
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == Ex2Sheet.NOT_A_CELL) continue;
+            int i = hash(oldKeys[j]);
+            while (keys[i] != Ex2Sheet.NOT_A_CELL) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static long[] newKeys(int n) {
+        long[] keys = new long[n];
+        Arrays.fill(keys, Ex2Sheet.NOT_A_CELL);
+        return keys;
+    }
+
+    // Fibonacci hashing of the packed coordinates into the table
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
@@ -0,0 +1,98 @@
+package Code;
+
+/**
+ * An aggregate function over a rectangular range of cells, e.g., SUM(A0:B9) or MAX(C3:C7).
+ * Numbers in the range are aggregated, text and empty cells are skipped, and an error in the range makes
+ * the aggregate an error (a cycle error first). AVERAGE of a range with no numbers is a form error,
+ * MIN and MAX of it are 0.
+ *
+ * A range is queried through the column indexes of its sheet (see ColumnIndex), never by scanning its cells.
+ * A range is immutable, the result of a query is kept by the EvalContext of the thread, so querying allocates nothing.
+ */
+public class CellRange {
+    public static final int SUM = 0, AVERAGE = 1, MIN = 2, MAX = 3, COUNT = 4;
+    private static final String[] FUNCTIONS = {"SUM", "AVERAGE", "MIN", "MAX", "COUNT"};
+
+    private final int function;
+    private final int x0, y0, x1, y1; // inclusive corners, x0 <= x1 and y0 <= y1
+
+    public CellRange(int function, int x0, int y0, int x1, int y1) {
+        this.function = function;
+        this.x0 = Math.min(x0, x1);
+        this.x1 = Math.max(x0, x1);
+        this.y0 = Math.min(y0, y1);
+        this.y1 = Math.max(y0, y1);
+    }
+
+    /**
+     * @return the function named (in upper case) by s[from..to), or -1 if there is none.
+     */
+    public static int function(String s, int from, int to) {
+        for (int i = 0; i < FUNCTIONS.length; i++) {
+            if (FUNCTIONS[i].length() == to - from && s.startsWith(FUNCTIONS[i], from)) return i;
+        }
+        return -1;
+    }
+
+    public int minX() {
+        return x0;
+    }
+
+    public int maxX() {
+        return x1;
+    }
+
+    public int minY() {
+        return y0;
+    }
+
+    public int maxY() {
+        return y1;
+    }
+
+    /**
+     * @return true iff the whole range is inside the sheet.
+     */
+    public boolean isIn(Ex2Sheet sheet) {
+        return sheet.isIn(x0, y0) && sheet.isIn(x1, y1);
+    }
+
+    /**
+     * Aggregates the current values of the range (which must be inside the sheet) into a context,
+     * see kind(EvalContext) and value(EvalContext).
+     */
+    public void query(Ex2Sheet sheet, EvalContext into) {
+        into.clearAggregate();
+        for (int x = x0; x <= x1; x++) {
+            sheet.columnIndex(x).query(y0, y1, into);
+        }
+    }
+
+    /**
+     * @return the kind (see CellValue) of the last query of this range into the context.
+     */
+    public int kind(EvalContext result) {
+        if (result.cycles() > 0) return CellValue.ERR_CYCLE;
+        if (result.forms() > 0 || (function == AVERAGE && result.count() == 0)) return CellValue.ERR_FORM;
+        return CellValue.NUMBER;
+    }
+
+    /**
+     * @return the value of the last query of this range into the context (meaningful when its kind is CellValue.NUMBER).
+     */
+    public double value(EvalContext result) {
+        int count = result.count();
+        switch (function) {
+            case SUM:
+                return result.sum();
+            case AVERAGE:
+                return result.sum() / count;
+            case MIN:
+                return count == 0 ? 0 : result.min();
+            case MAX:
+                return count == 0 ? 0 : result.max();
+            default:
+                return count;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package Code;
+
+/**
+ * The storage backend of an Ex2Sheet: the cells (their data) and the stored value and kind (see CellValue)
+ * computed for each of them.
+ * A store also numbers the cells it keeps with dense slots 0, 1, 2..., which the sheet uses as the ids of its
+ * dependency graph. Only cells with a slot can hold data or a stored value: a cell without a slot is empty
+ * (kind CellValue.EMPTY), and nothing refers to it.
+ */
+public interface CellStore {
+    int width();
+
+    int height();
+
+    /**
+     * @return the slot of the x,y cell, or -1 if it has none.
+     */
+    int slot(int x, int y);
+
+    /**
+     * @return the slot of the x,y cell (inside the store), which is allocated if it has none.
+     */
+    int allocate(int x, int y);
+
+    /**
+     * @return the number of slots allocated so far, the slots are 0..slots()-1 (some of them may be free, see release).
+     */
+    int slots();
+
+    /**
+     * @return the x coordinate of the cell of a slot, -1 for a free slot.
+     */
+    int x(int slot);
+
+    /**
+     * @return the y coordinate of the cell of a slot.
+     */
+    int y(int slot);
+
+    /**
+     * Frees the slot of the x,y cell, which is empty and which nothing refers to, for allocate to reuse: its stored
+     * value becomes empty. A store which gives every cell a slot (see DenseCellStore) keeps it.
+     * @return true iff the slot was freed.
+     */
+    default boolean release(int x, int y) {
+        return false;
+    }
+
+    /**
+     * @return the cell at x,y, or null if it is empty. A store may keep some cells without their objects and build
+     * a new one on every call (see OffHeapCellStore), so the hot paths read the type and number below instead.
+     */
+    SCell cell(int x, int y);
+
+    /**
+     * @return the type (see Ex2Utils) of the x,y cell, Ex2Utils.TEXT if it is empty (as an empty SCell).
+     */
+    default int type(int x, int y) {
+        SCell cell = cell(x, y);
+        return cell == null ? Ex2Utils.TEXT : cell.getType();
+    }
+
+    /**
+     * @return the number of the x,y cell, which is a NUMBER cell (see SCell.getNumber).
+     */
+    default double number(int x, int y) {
+        return cell(x, y).getNumber();
+    }
+
+    /**
+     * Sets the cell at x,y, which must have a slot (null empties it).
+     */
+    void setCell(int x, int y, SCell cell);
+
+    /**
+     * @return the kind (see CellValue) of the stored value of the x,y cell.
+     */
+    int kind(int x, int y);
+
+    /**
+     * @return the stored value of the x,y cell (meaningful when its kind is CellValue.NUMBER).
+     */
+    double value(int x, int y);
+
+    /**
+     * Stores the value of the x,y cell, which must have a slot.
+     * Values of different cells may be stored concurrently (but not while slots are allocated).
+     */
+    void set(int x, int y, int kind, double value);
+
+    /**
+     * Copies the stored values of rows y..y+len-1 of column x (all inside the store) into out, from offset.
+     */
+    void copyValues(int x, int y, double[] out, int offset, int len);
+
+    /**
+     * Copies the kinds of the stored values of rows y..y+len-1 of column x (all inside the store) into out, from offset.
+     */
+    void copyKinds(int x, int y, byte[] out, int offset, int len);
+
+    /**
+     * @return a new empty store of the same kind, of the given dimensions.
+     */
+    CellStore empty(int width, int height);
+}
@@ -0,0 +1,51 @@
+package Code;
+
+/**
+ * The kinds of a computed cell value, as kept by Ex2Sheet next to the numeric value of each cell.
+ * A value is represented by a (kind, number) pair of primitives, so passing results and errors around
+ * the evaluation never allocates - the Strings of the Sheet interface are derived only when asked for.
+ */
+public final class CellValue {
+    public static final byte EMPTY = 0, NUMBER = 1, TEXT = 2, ERR_FORM = 3, ERR_CYCLE = 4;
+
+    private CellValue() {}
+
+    public static boolean isError(int kind) {
+        return kind == ERR_FORM || kind == ERR_CYCLE;
+    }
+
+    /**
+     * @return the Cell type (see Ex2Utils) of a form whose evaluation resulted in this kind.
+     */
+    public static int formType(int kind) {
+        switch (kind) {
+            case ERR_FORM:
+                return Ex2Utils.ERR_FORM_FORMAT;
+            case ERR_CYCLE:
+                return Ex2Utils.ERR_CYCLE_FORM;
+            default:
+                return Ex2Utils.FORM;
+        }
+    }
+
+    /**
+     * @param kind the kind of the value.
+     * @param number the numeric value (used by NUMBER only).
+     * @param text the data of the cell (used by TEXT only).
+     * @return the String presented for this value.
+     */
+    public static String toString(int kind, double number, String text) {
+        switch (kind) {
+            case NUMBER:
+                return String.valueOf(number);
+            case TEXT:
+                return text;
+            case ERR_FORM:
+                return Ex2Utils.ERR_FORM;
+            case ERR_CYCLE:
+                return Ex2Utils.ERR_CYCLE;
+            default:
+                return Ex2Utils.EMPTY_CELL;
+        }
+    }
+}
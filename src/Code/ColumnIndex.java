@@ -0,0 +1,96 @@
+package Code;
+
+/**
+ * A segment tree over the values of one column of a sheet, answering range aggregates (see CellRange)
+ * in O(log(rows)) and updated in O(log(rows)) whenever the value of a cell of the column is written.
+ * Every node keeps the sum, minimum, maximum and count of the numbers below it, and the number of
+ * form and cycle errors below it. The tree is synchronized, cells of one column may be computed concurrently.
+ */
+public class ColumnIndex {
+    private final int n; // number of leaves (rows), leaf y is node n+y
+    private final double[] sum, min, max;
+    private final int[] count, forms, cycles;
+
+    /**
+     * Builds the index of column x of a store, in O(rows).
+     */
+    public ColumnIndex(CellStore store, int x) {
+        n = store.height();
+        sum = new double[2 * n];
+        min = new double[2 * n];
+        max = new double[2 * n];
+        count = new int[2 * n];
+        forms = new int[2 * n];
+        cycles = new int[2 * n];
+        for (int y = 0; y < n; y++) {
+            leaf(n + y, store.kind(x, y), store.value(x, y));
+        }
+        for (int i = n - 1; i > 0; i--) {
+            pull(i);
+        }
+    }
+
+    /**
+     * Updates the value of the cell in row y.
+     */
+    public synchronized void set(int y, int kind, double value) {
+        int i = n + y;
+        leaf(i, kind, value);
+        for (i >>= 1; i > 0; i >>= 1) {
+            pull(i);
+        }
+    }
+
+    /**
+     * Updates the values of the rows from..to (inclusive) of column x of a store, in O(to - from + log(rows)):
+     * the leaves first, then each level of their ancestors (from the right, a node may share a level with its child).
+     */
+    public synchronized void setAll(int from, int to, CellStore store, int x) {
+        for (int y = from; y <= to; y++) {
+            leaf(n + y, store.kind(x, y), store.value(x, y));
+        }
+        for (int l = (n + from) >> 1, r = (n + to) >> 1; r > 0; l >>= 1, r >>= 1) {
+            for (int i = r; i >= Math.max(l, 1); i--) {
+                pull(i);
+            }
+        }
+    }
+
+    /**
+     * Adds the aggregates of the rows from..to (inclusive) into a range query.
+     */
+    public synchronized void query(int from, int to, EvalContext into) {
+        for (int l = from + n, r = to + n + 1; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                add(l++, into);
+            }
+            if ((r & 1) == 1) {
+                add(--r, into);
+            }
+        }
+    }
+
+    private void add(int i, EvalContext into) {
+        into.add(sum[i], min[i], max[i], count[i], forms[i], cycles[i]);
+    }
+
+    private void leaf(int i, int kind, double value) {
+        boolean number = kind == CellValue.NUMBER;
+        sum[i] = number ? value : 0;
+        min[i] = number ? value : Double.POSITIVE_INFINITY;
+        max[i] = number ? value : Double.NEGATIVE_INFINITY;
+        count[i] = number ? 1 : 0;
+        forms[i] = kind == CellValue.ERR_FORM ? 1 : 0;
+        cycles[i] = kind == CellValue.ERR_CYCLE ? 1 : 0;
+    }
+
+    private void pull(int i) {
+        int l = 2 * i, r = l + 1;
+        sum[i] = sum[l] + sum[r];
+        min[i] = Math.min(min[l], min[r]);
+        max[i] = Math.max(max[l], max[r]);
+        count[i] = count[l] + count[r];
+        forms[i] = forms[l] + forms[r];
+        cycles[i] = cycles[l] + cycles[r];
+    }
+}
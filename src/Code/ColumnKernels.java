@@ -0,0 +1,48 @@
+package Code;
+
+/**
+ * Element-wise operators over primitive arrays of doubles, used to compute a block of cells of one column
+ * (see BlockRecalc) with one tight loop per operator, instead of one formula evaluation per cell.
+ * The loops are kept simple enough for the JIT to vectorize them (SIMD): the Vector API would need
+ * --add-modules jdk.incubator.vector at compile and run time, which this project's build does not pass.
+ * The operators are the ones of the compiled tier (see FormulaCompiler): a division by zero gives NaN,
+ * and NaN always propagates to the result.
+ */
+public class ColumnKernels {
+
+    /**
+     * a[i] = a[i] op b[i], for 0 <= i < n.
+     * @param op one of '+', '-', '*', '/', '%', '^'.
+     */
+    public static void apply(char op, double[] a, double[] b, int n) {
+        switch (op) {
+            case '+':
+                for (int i = 0; i < n; i++) a[i] += b[i];
+                break;
+            case '-':
+                for (int i = 0; i < n; i++) a[i] -= b[i];
+                break;
+            case '*':
+                for (int i = 0; i < n; i++) a[i] *= b[i];
+                break;
+            case '/':
+                for (int i = 0; i < n; i++) a[i] = b[i] == 0d ? Double.NaN : a[i] / b[i];
+                break;
+            case '%':
+                for (int i = 0; i < n; i++) a[i] = b[i] == 0d ? Double.NaN : a[i] % b[i];
+                break;
+            case '^':
+                for (int i = 0; i < n; i++) a[i] = a[i] != a[i] ? a[i] : Math.pow(a[i], b[i]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+    }
+
+    /**
+     * a[i] = -a[i], for 0 <= i < n.
+     */
+    public static void neg(double[] a, int n) {
+        for (int i = 0; i < n; i++) a[i] = -a[i];
+    }
+}
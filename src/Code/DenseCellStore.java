@@ -0,0 +1,93 @@
+package Code;
+
+/**
+ * The default CellStore: every cell has a slot (x * height + y), and the stored values and kinds are kept in
+ * one primitive array per column. Cell objects are only allocated for cells which are not empty.
+ */
+public class DenseCellStore implements CellStore {
+    private final SCell[][] cells; // null for empty cells
+    private final double[][] values; // values[x] is the column x
+    private final byte[][] kinds; // by column as well
+
+    public DenseCellStore(int width, int height) {
+        cells = new SCell[width][height];
+        values = new double[width][height];
+        kinds = new byte[width][height];
+    }
+
+    @Override
+    public int width() {
+        return cells.length;
+    }
+
+    @Override
+    public int height() {
+        return cells[0].length;
+    }
+
+    @Override
+    public int slot(int x, int y) {
+        return x * height() + y;
+    }
+
+    @Override
+    public int allocate(int x, int y) {
+        return slot(x, y);
+    }
+
+    @Override
+    public int slots() {
+        return width() * height();
+    }
+
+    @Override
+    public int x(int slot) {
+        return slot / height();
+    }
+
+    @Override
+    public int y(int slot) {
+        return slot % height();
+    }
+
+    @Override
+    public SCell cell(int x, int y) {
+        return cells[x][y];
+    }
+
+    @Override
+    public void setCell(int x, int y, SCell cell) {
+        cells[x][y] = cell;
+    }
+
+    @Override
+    public int kind(int x, int y) {
+        return kinds[x][y];
+    }
+
+    @Override
+    public double value(int x, int y) {
+        return values[x][y];
+    }
+
+    @Override
+    public void set(int x, int y, int kind, double value) {
+        values[x][y] = value;
+        kinds[x][y] = (byte) kind;
+    }
+
+    @Override
+    public void copyValues(int x, int y, double[] out, int offset, int len) {
+        System.arraycopy(values[x], y, out, offset, len);
+    }
+
+    @Override
+    public void copyKinds(int x, int y, byte[] out, int offset, int len) {
+        System.arraycopy(kinds[x], y, out, offset, len);
+    }
+
+    @Override
+    public CellStore empty(int width, int height) {
+        return new DenseCellStore(width, height);
+    }
+}
@@ -0,0 +1,645 @@
+package Code;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * The precedent/dependent graph of a spreadsheet.
+ * Cells are identified by an int id (their slot in the CellStore of the sheet), an edge p -> d means that
+ * the formula of d refers to p. The graph grows with the slots of the store (see grow).
+ * Each cell keeps both directions: its precedents (replaced as a whole whenever its formula changes)
+ * and its dependents (maintained incrementally from the precedent updates).
+ *
+ * The ranges of formulas (e.g., SUM(A0:A9999)) add no edge per cell of the range: each distinct area is one
+ * aggregate node, with an id of its own, between the cells in the area and the cells whose formulas refer to it
+ * (its users). The aggregates covering a cell are found through an IntervalIndex per column, so the traversals
+ * below take time in proportion to the cells they visit, never to the size of the ranges they meet.
+ * The traversals only ever report cells: a component made of aggregates alone is no component.
+ */
+public class DependencyGraph {
+    private static final int[] NONE = new int[0];
+    private static final CellRange[] NO_RANGES = {};
+
+    private int[][] precedents;
+    private int[][] dependents;
+    private int[] dependentCount;
+
+    // aggregates (see above), by id; a node index of the traversals below is a cell, or size() + the id of an aggregate
+    private final CellStore store; // the coordinates of the cells, null for a graph without ranges
+    private IntervalIndex[] columns = null; // by x: the areas covering the column, null if none
+    private int[][] ranges; // by cell: the aggregates its formula refers to
+    private Aggregate[] aggregates = new Aggregate[0]; // null for a free id
+    private final Map<Aggregate, Aggregate> areas = new HashMap<>(); // by area
+    private int used = 0; // the ids given so far
+    private int[] freeIds = NONE; // the ids given and freed since (the first freeCount entries)
+    private int freeCount = 0;
+    private int[] found = NONE; // scratch space of aggregates.length ids, see aggregatesAt
+    private int[] area = NONE; // scratch space of size() cells, see upstream
+
+    // scratch space for the traversals below, reset lazily using an epoch stamp
+    private int[] mark;
+    private int[] scratch;
+    private int epoch = 0;
+
+    // state of the strongly connected components traversal
+    private int[] low;
+    private int[] stack;
+    private int[] calls, next; // the explicit call stack of the traversal, and the next precedent to visit
+    private boolean[] onStack;
+    private int counter, sp, emitted, components;
+
+    // an area of cells (inclusive corners) referred to by ranges, with the cells whose formulas refer to it
+    private static final class Aggregate {
+        final int x0, y0, x1, y1;
+        int id;
+        int[] users = NONE;
+        int userCount = 0;
+        // the cells of the working set of the current traversal in the area (see index and components)
+        int stamp = 0;
+        int[] members = NONE;
+        int memberCount = 0;
+
+        Aggregate(CellRange range) {
+            x0 = range.minX();
+            y0 = range.minY();
+            x1 = range.maxX();
+            y1 = range.maxY();
+        }
+
+        boolean contains(int x, int y) {
+            return x >= x0 && x <= x1 && y >= y0 && y <= y1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Aggregate)) return false;
+            Aggregate a = (Aggregate) o;
+            return x0 == a.x0 && y0 == a.y0 && x1 == a.x1 && y1 == a.y1;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((x0 * 31 + y0) * 31 + x1) * 31 + y1;
+        }
+    }
+
+    /**
+     * A graph of the given number of cells, without ranges (see setPrecedents).
+     */
+    public DependencyGraph(int size) {
+        this(size, null);
+    }
+
+    /**
+     * The graph of the cells of a store (see CellStore.slots), which may refer to ranges.
+     */
+    public DependencyGraph(CellStore store) {
+        this(store.slots(), store);
+    }
+
+    private DependencyGraph(int size, CellStore store) {
+        this.store = store;
+        precedents = new int[size][];
+        dependents = new int[size][];
+        ranges = new int[size][];
+        dependentCount = new int[size];
+        mark = new int[size];
+        for (int i = 0; i < size; i++) {
+            precedents[i] = NONE;
+            dependents[i] = NONE;
+            ranges[i] = NONE;
+        }
+        nodes();
+    }
+
+    public int size() {
+        return precedents.length;
+    }
+
+    /**
+     * Makes room for the cells 0..size-1 (the new cells have no precedents and no dependents).
+     */
+    public void grow(int size) {
+        int old = precedents.length;
+        if (size <= old) return;
+        precedents = Arrays.copyOf(precedents, size);
+        dependents = Arrays.copyOf(dependents, size);
+        ranges = Arrays.copyOf(ranges, size);
+        Arrays.fill(precedents, old, size, NONE);
+        Arrays.fill(dependents, old, size, NONE);
+        Arrays.fill(ranges, old, size, NONE);
+        dependentCount = Arrays.copyOf(dependentCount, size);
+        mark = Arrays.copyOf(mark, size);
+        nodes();
+    }
+
+    // (re)allocates the scratch space of the traversals, for every cell and every aggregate id
+    private void nodes() {
+        int n = precedents.length + aggregates.length;
+        scratch = new int[n];
+        low = new int[n];
+        stack = new int[n];
+        calls = new int[n];
+        next = new int[n];
+        onStack = new boolean[n];
+        found = new int[aggregates.length];
+    }
+
+    /**
+     * Forgets a cell without precedents and dependents, whose id the store gives to another cell from now on.
+     */
+    public void release(int cell) {
+        dependents[cell] = NONE;
+    }
+
+    /**
+     * @return the (distinct) cells the formula of this cell refers to.
+     */
+    public int[] precedents(int cell) {
+        return precedents[cell];
+    }
+
+    public int dependentCount(int cell) {
+        return dependentCount[cell];
+    }
+
+    /**
+     * @return the i-th cell whose formula refers to this cell, 0 <= i < dependentCount(cell).
+     */
+    public int dependent(int cell, int i) {
+        return dependents[cell][i];
+    }
+
+    /**
+     * @return the aggregates (see above) the formula of this cell refers to.
+     */
+    public int[] ranges(int cell) {
+        return ranges[cell];
+    }
+
+    /**
+     * @return true iff the formula of this cell refers to cells or to ranges.
+     */
+    public boolean hasPrecedents(int cell) {
+        return precedents[cell].length > 0 || ranges[cell].length > 0;
+    }
+
+    /**
+     * @return the number of aggregate ids (the ids are 0..aggregates()-1, some of them may be free).
+     */
+    public int aggregates() {
+        return aggregates.length;
+    }
+
+    public int userCount(int aggregate) {
+        return aggregates[aggregate].userCount;
+    }
+
+    /**
+     * @return the i-th cell whose formula refers to the aggregate, 0 <= i < userCount(aggregate).
+     */
+    public int user(int aggregate, int i) {
+        return aggregates[aggregate].users[i];
+    }
+
+    /**
+     * Calls action with each aggregate whose area contains the cell.
+     * Only reads the graph, so it may be called concurrently while the graph is not changed.
+     */
+    public void forEachAggregateAt(int cell, IntConsumer action) {
+        if (columns == null) return;
+        IntervalIndex column = columns[store.x(cell)];
+        if (column != null) {
+            column.forEach(store.y(cell), action);
+        }
+    }
+
+    // collects the aggregates whose areas contain the cell into found, returns their number
+    private int aggregatesAt(int cell) {
+        if (columns == null) return 0;
+        IntervalIndex column = columns[store.x(cell)];
+        return column == null ? 0 : column.collect(store.y(cell), found);
+    }
+
+    /**
+     * Replaces all the precedents of a cell (duplicates are ignored).
+     * @param cell the cell whose formula changed.
+     * @param refs the cells its new formula refers to.
+     */
+    public void setPrecedents(int cell, int[] refs) {
+        setPrecedents(cell, refs, NO_RANGES);
+    }
+
+    /**
+     * Replaces all the precedents of a cell (duplicates are ignored), for a graph of a store.
+     * @param cell the cell whose formula changed.
+     * @param refs the cells its new formula refers to.
+     * @param areas the ranges its new formula refers to (inside the store), by their areas only.
+     */
+    public void setPrecedents(int cell, int[] refs, CellRange[] areas) {
+        for (int a : ranges[cell]) {
+            removeUser(a, cell);
+        }
+        ranges[cell] = NONE;
+        for (CellRange area : areas) {
+            int a = aggregate(area);
+            int k = ranges[cell].length;
+            if (contains(ranges[cell], a)) continue; // the same area twice
+            ranges[cell] = Arrays.copyOf(ranges[cell], k + 1);
+            ranges[cell][k] = a;
+            addUser(a, cell);
+        }
+        for (int p : precedents[cell]) {
+            removeDependent(p, cell);
+        }
+        int stamp = nextEpoch();
+        int n = 0;
+        int[] distinct = new int[refs.length];
+        for (int p : refs) {
+            if (mark[p] != stamp) {
+                mark[p] = stamp;
+                distinct[n++] = p;
+            }
+        }
+        precedents[cell] = n == 0 ? NONE : (n == distinct.length ? distinct : Arrays.copyOf(distinct, n));
+        for (int i = 0; i < n; i++) {
+            addDependent(distinct[i], cell);
+        }
+    }
+
+    /**
+     * Collects the given cell and every cell that (transitively) depends on it.
+     * @param root the changed cell.
+     * @param out an array of at least size() entries, filled in breadth-first order starting with root.
+     * @return the number of collected cells.
+     */
+    public int cone(int root, int[] out) {
+        return cone(new int[]{root}, 1, out);
+    }
+
+    /**
+     * Collects the given cells and every cell that (transitively) depends on any of them, each cell once.
+     * @param roots the changed cells (the first k entries).
+     * @param out an array of at least size() entries, filled in breadth-first order starting with the roots.
+     * @return the number of collected cells.
+     */
+    public int cone(int[] roots, int k, int[] out) {
+        int stamp = nextEpoch();
+        int head = 0, tail = 0;
+        for (int i = 0; i < k; i++) {
+            if (mark[roots[i]] != stamp) {
+                mark[roots[i]] = stamp;
+                out[tail++] = roots[i];
+            }
+        }
+        while (head < tail) {
+            int c = out[head++];
+            for (int i = 0; i < dependentCount[c]; i++) {
+                int d = dependents[c][i];
+                if (mark[d] != stamp) {
+                    mark[d] = stamp;
+                    out[tail++] = d;
+                }
+            }
+            for (int i = aggregatesAt(c) - 1; i >= 0; i--) {
+                Aggregate a = aggregates[found[i]];
+                if (a.stamp == stamp) continue; // its users were collected already
+                a.stamp = stamp;
+                for (int j = 0; j < a.userCount; j++) {
+                    int d = a.users[j];
+                    if (mark[d] != stamp) {
+                        mark[d] = stamp;
+                        out[tail++] = d;
+                    }
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Collects the given cell and every cell it (transitively) refers to through cells of a given subset.
+     * The members in the area of a range are found by scanning the area or all the cells, whichever is smaller,
+     * once per area.
+     * @param root the requested cell, a member of the subset.
+     * @param member the subset, by cell id (e.g., the cells whose values are out of date).
+     * @param out an array of at least size() entries, filled with the collected members.
+     * @return the number of collected cells.
+     */
+    public int upstream(int root, boolean[] member, int[] out) {
+        int stamp = nextEpoch();
+        int head = 0, tail = 0;
+        mark[root] = stamp;
+        out[tail++] = root;
+        while (head < tail) {
+            int c = out[head++];
+            for (int p : precedents[c]) {
+                if (member[p] && mark[p] != stamp) {
+                    mark[p] = stamp;
+                    out[tail++] = p;
+                }
+            }
+            for (int id : ranges[c]) {
+                Aggregate a = aggregates[id];
+                if (a.stamp == stamp) continue;
+                a.stamp = stamp;
+                if (area.length < precedents.length) {
+                    area = new int[precedents.length];
+                }
+                for (int i = cellsIn(id, area) - 1; i >= 0; i--) {
+                    int p = area[i];
+                    if (member[p] && mark[p] != stamp) {
+                        mark[p] = stamp;
+                        out[tail++] = p;
+                    }
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Collects the cells (with a slot) in the area of an aggregate, scanning the area or all the cells,
+     * whichever is smaller.
+     * @param out an array of at least size() entries.
+     * @return the number of collected cells.
+     */
+    public int cellsIn(int aggregate, int[] out) {
+        Aggregate a = aggregates[aggregate];
+        int n = 0;
+        if ((long) (a.x1 - a.x0 + 1) * (a.y1 - a.y0 + 1) <= store.slots()) {
+            for (int x = a.x0; x <= a.x1; x++) {
+                for (int y = a.y0; y <= a.y1; y++) {
+                    int p = store.slot(x, y);
+                    if (p >= 0) out[n++] = p;
+                }
+            }
+        } else {
+            for (int p = 0; p < store.slots(); p++) {
+                if (a.contains(store.x(p), store.y(p))) out[n++] = p;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Finds the strongly connected components of a set of cells (Tarjan's algorithm), following only references
+     * between cells of the set: a formula refers to the aggregates of its ranges, and an aggregate to the cells of
+     * the set in its area. Takes O(cells + references + aggregates covering the cells), and since a component is
+     * found only after all the components it refers to, the components come out in evaluation order.
+     * @param cells the cells (the first n entries), with no duplicates.
+     * @param out an array of at least n entries, filled with the cells grouped by component, in evaluation order.
+     * @param starts an array of at least n+1 entries, component i is out[starts[i]..starts[i+1]).
+     * @return the number of components.
+     */
+    public int components(int[] cells, int n, int[] out, int[] starts) {
+        int stamp = nextEpoch();
+        for (int i = 0; i < n; i++) {
+            mark[cells[i]] = stamp;
+            scratch[cells[i]] = -1; // not visited yet, else its visit index
+        }
+        collectMembers(cells, n, stamp, true);
+        counter = sp = emitted = components = 0;
+        for (int i = 0; i < n; i++) {
+            if (scratch[cells[i]] < 0) {
+                connect(cells[i], stamp, out, starts);
+            }
+        }
+        starts[components] = emitted;
+        return components;
+    }
+
+    // the depth-first traversal of Tarjan's algorithm, with an explicit stack so chains of any length are safe
+    private void connect(int root, int stamp, int[] out, int[] starts) {
+        int top = 0;
+        calls[0] = root;
+        enter(root);
+        while (top >= 0) {
+            int v = calls[top];
+            int p = precedent(v, next[v]);
+            if (p >= 0) {
+                next[v]++;
+                if (!isMember(p, stamp)) continue; // not in the set
+                if (scratch[p] < 0) {
+                    enter(p);
+                    calls[++top] = p;
+                } else if (onStack[p]) {
+                    low[v] = Math.min(low[v], scratch[p]);
+                }
+                continue;
+            }
+            if (low[v] == scratch[v]) {
+                int first = emitted, w;
+                do {
+                    w = stack[--sp];
+                    onStack[w] = false;
+                    if (w < precedents.length) { // aggregates are not reported
+                        out[emitted++] = w;
+                    }
+                } while (w != v);
+                if (emitted > first) {
+                    starts[components++] = first;
+                }
+            }
+            if (--top >= 0) {
+                low[calls[top]] = Math.min(low[calls[top]], low[v]);
+            }
+        }
+    }
+
+    // the i-th precedent (a node index) of the node v, or -1 past the last one
+    private int precedent(int v, int i) {
+        int size = precedents.length;
+        if (v >= size) {
+            Aggregate a = aggregates[v - size];
+            return i < a.memberCount ? a.members[i] : -1;
+        }
+        if (i < precedents[v].length) {
+            return precedents[v][i];
+        }
+        i -= precedents[v].length;
+        return i < ranges[v].length ? size + ranges[v][i] : -1;
+    }
+
+    // true iff the node is a cell of the working set, or an aggregate with cells of the working set in its area
+    private boolean isMember(int node, int stamp) {
+        return node < precedents.length ? mark[node] == stamp : aggregates[node - precedents.length].stamp == stamp;
+    }
+
+    private void enter(int v) {
+        scratch[v] = low[v] = counter++;
+        next[v] = 0;
+        stack[sp++] = v;
+        onStack[v] = true;
+    }
+
+    /**
+     * @return true iff the component out[from..to) is a cycle: more than one cell, or a cell referring to itself
+     * (directly, or through a range it is in).
+     */
+    public boolean isCycle(int[] out, int from, int to) {
+        if (to - from > 1) return true;
+        int c = out[from];
+        for (int p : precedents[c]) {
+            if (p == c) return true;
+        }
+        for (int a : ranges[c]) {
+            if (aggregates[a].contains(store.x(c), store.y(c))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks a set of cells as the current working set, remembering the position of each cell in it, and the number
+     * of its cells in the area of each aggregate (see members).
+     * The returned stamp stays valid (see position) until the next traversal of this graph.
+     * @return the stamp of the working set.
+     */
+    public int index(int[] cells, int n) {
+        int stamp = nextEpoch();
+        for (int i = 0; i < n; i++) {
+            mark[cells[i]] = stamp;
+            scratch[cells[i]] = i;
+        }
+        collectMembers(cells, n, stamp, false);
+        return stamp;
+    }
+
+    /**
+     * @return the position of the cell in the working set with the given stamp, or -1 if it is not a member.
+     * Only reads the graph, so it may be called concurrently while the working set is not changed.
+     */
+    public int position(int cell, int stamp) {
+        return mark[cell] == stamp ? scratch[cell] : -1;
+    }
+
+    /**
+     * @return the number of cells of the working set with the given stamp in the area of the aggregate.
+     * Only reads the graph, so it may be called concurrently while the working set is not changed.
+     */
+    public int members(int aggregate, int stamp) {
+        Aggregate a = aggregates[aggregate];
+        return a != null && a.stamp == stamp ? a.memberCount : 0;
+    }
+
+    // finds the aggregates covering the cells of a working set, and counts (or lists) their cells in the set
+    private void collectMembers(int[] cells, int n, int stamp, boolean list) {
+        if (columns == null) return;
+        int size = precedents.length;
+        for (int i = 0; i < n; i++) {
+            int c = cells[i];
+            for (int j = aggregatesAt(c) - 1; j >= 0; j--) {
+                Aggregate a = aggregates[found[j]];
+                if (a.stamp != stamp) {
+                    a.stamp = stamp;
+                    a.memberCount = 0;
+                    scratch[size + a.id] = -1;
+                }
+                if (list) {
+                    if (a.memberCount == a.members.length) {
+                        a.members = Arrays.copyOf(a.members, Math.max(4, 2 * a.memberCount));
+                    }
+                    a.members[a.memberCount] = c;
+                }
+                a.memberCount++;
+            }
+        }
+    }
+
+    // the id of the aggregate of an area, created if no formula referred to it yet
+    private int aggregate(CellRange range) {
+        Aggregate key = new Aggregate(range);
+        Aggregate a = areas.get(key);
+        if (a != null) return a.id;
+        int id = freeCount > 0 ? freeIds[--freeCount] : used++;
+        if (id == aggregates.length) {
+            aggregates = Arrays.copyOf(aggregates, Math.max(4, 2 * id));
+            nodes();
+        }
+        key.id = id;
+        aggregates[id] = key;
+        areas.put(key, key);
+        if (columns == null) {
+            columns = new IntervalIndex[store.width()];
+        }
+        for (int x = key.x0; x <= key.x1; x++) {
+            if (columns[x] == null) {
+                columns[x] = new IntervalIndex(store.height());
+            }
+            columns[x].add(key.y0, key.y1, id);
+        }
+        return id;
+    }
+
+    private void addUser(int aggregate, int cell) {
+        Aggregate a = aggregates[aggregate];
+        if (a.userCount == a.users.length) {
+            a.users = Arrays.copyOf(a.users, Math.max(4, 2 * a.userCount));
+        }
+        a.users[a.userCount++] = cell;
+    }
+
+    // removes a user of an aggregate, and the aggregate itself once no formula refers to it
+    private void removeUser(int aggregate, int cell) {
+        Aggregate a = aggregates[aggregate];
+        for (int i = 0; i < a.userCount; i++) {
+            if (a.users[i] == cell) {
+                a.users[i] = a.users[--a.userCount];
+                break;
+            }
+        }
+        if (a.userCount > 0) return;
+        for (int x = a.x0; x <= a.x1; x++) {
+            columns[x].remove(a.y0, a.y1, aggregate);
+        }
+        areas.remove(a);
+        aggregates[aggregate] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, Math.max(4, 2 * freeCount));
+        }
+        freeIds[freeCount++] = aggregate;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int i : ids) {
+            if (i == id) return true;
+        }
+        return false;
+    }
+
+    private void addDependent(int cell, int dep) {
+        int[] deps = dependents[cell];
+        int n = dependentCount[cell];
+        if (n == deps.length) {
+            deps = Arrays.copyOf(deps, Math.max(4, n * 2));
+            dependents[cell] = deps;
+        }
+        deps[n] = dep;
+        dependentCount[cell] = n + 1;
+    }
+
+    private void removeDependent(int cell, int dep) {
+        int[] deps = dependents[cell];
+        int n = dependentCount[cell];
+        for (int i = 0; i < n; i++) {
+            if (deps[i] == dep) {
+                deps[i] = deps[n - 1];
+                dependentCount[cell] = n - 1;
+                return;
+            }
+        }
+    }
+
+    private int nextEpoch() {
+        if (++epoch == Integer.MAX_VALUE) {
+            Arrays.fill(mark, 0);
+            for (Aggregate a : aggregates) {
+                if (a != null) a.stamp = 0;
+            }
+            epoch = 1;
+        }
+        return epoch;
+    }
+}
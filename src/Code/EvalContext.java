@@ -0,0 +1,129 @@
+package Code;
+
+import java.util.Arrays;
+
+/**
+ * The scratch state of evaluating a formula, kept once per thread (see current()) rather than by every cell:
+ * the cell being evaluated, the values bound to the variables of its formula, the stack of the interpreter
+ * (see FormulaPlan), the aggregate of the last range query (see CellRange), and the result.
+ */
+public class EvalContext {
+    private static final ThreadLocal<EvalContext> CURRENT = ThreadLocal.withInitial(EvalContext::new);
+
+    private int x, y; // the cell being evaluated
+    private double[] bound = new double[16]; // the values of the variables of its formula (cell references, then ranges)
+    private double[] stack = new double[16]; // the stack of the interpreter
+    private boolean failed; // the evaluation divided by zero
+    private double result;
+
+    // the aggregate of the last range query
+    private double sum, min, max;
+    private int count, forms, cycles;
+
+    /**
+     * @return the context of the current thread.
+     */
+    public static EvalContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts evaluating the formula of the x,y cell, which has the given number of variables.
+     */
+    void begin(int x, int y, int variables) {
+        this.x = x;
+        this.y = y;
+        if (bound.length < variables) {
+            bound = Arrays.copyOf(bound, Math.max(variables, 2 * bound.length));
+        }
+        failed = false;
+    }
+
+    public int x() {
+        return x;
+    }
+
+    public int y() {
+        return y;
+    }
+
+    void bind(int i, double value) {
+        bound[i] = value;
+    }
+
+    double bound(int i) {
+        return bound[i];
+    }
+
+    // a stack of at least the given depth, for the interpreter
+    double[] stack(int depth) {
+        if (stack.length < depth) {
+            stack = new double[Math.max(depth, 2 * stack.length)];
+        }
+        return stack;
+    }
+
+    void fail() {
+        failed = true;
+    }
+
+    /**
+     * @return true iff the last evaluation divided by zero (the formula evaluates to a form error).
+     */
+    public boolean failed() {
+        return failed;
+    }
+
+    void setResult(double result) {
+        this.result = result;
+    }
+
+    /**
+     * @return the numeric result of the last evaluation (see SCell.evaluate), meaningful when it returned CellValue.NUMBER.
+     */
+    public double result() {
+        return result;
+    }
+
+    // the aggregate of a range query, see CellRange.query
+    void clearAggregate() {
+        sum = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        count = forms = cycles = 0;
+    }
+
+    // called back by ColumnIndex.query
+    void add(double sum, double min, double max, int count, int forms, int cycles) {
+        this.sum += sum;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.count += count;
+        this.forms += forms;
+        this.cycles += cycles;
+    }
+
+    double sum() {
+        return sum;
+    }
+
+    double min() {
+        return min;
+    }
+
+    double max() {
+        return max;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int forms() {
+        return forms;
+    }
+
+    int cycles() {
+        return cycles;
+    }
+}
@@ -2,6 +2,9 @@ package Code;
 
 import java.awt.*;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
@@ -20,11 +23,16 @@ public class Ex2GUI {
 
 	private static Sheet table; // this is the main data (an implementation of the Sheet interface).
 	private static Index2D cord = null; // a table entry used by the GUI of setting up a cell value / form
+	private static String[][] shown = null; // the presented values of an Ex2Sheet, refreshed from its changed cells
+	// load and save, called by the menu on the AWT event thread, are run by the GUI loop: the thread which calls set()
+	private static final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
 	public Ex2GUI() {;}  // an empty (redundant) constructor.
 
 	/** The main function for running Ex2 */
 	public static void main(String[] a) {
-		table = new Ex2Sheet(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+		Ex2Sheet sheet = new Ex2Sheet(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+		sheet.setAsync(true); // edits are recalculated in the background, the GUI draws the last snapshot
+		table = sheet;
 		testSimpleGUI(table);
 	}
 
@@ -41,9 +49,13 @@ public class Ex2GUI {
 		table.eval();
 		// endless loop (GUI)
 		while (true) {
+			for (Runnable command = commands.poll(); command != null; command = commands.poll()) {
+				command.run(); // load or save
+			}
 			StdDrawEx2.clear(); // clear the GUI (Ex2 window).
 			drawFrame(); // draws the lines.
 			drawCells(); // draws the cells
+			drawStatus(); // shows whether the values are being recalculated
 			StdDrawEx2.show(); // presents the window.
 			int xx = StdDrawEx2.getXX(); // gets the x coordinate of the mouse click (-1 if none)
 			int yy = StdDrawEx2.getYY(); // gets the y coordinate of the mouse click (-1 if none)
@@ -52,20 +64,24 @@ public class Ex2GUI {
 		}
 	}
 	public static void save(String fileName){
-		try {
-			table.save(fileName);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		commands.add(() -> {
+			try {
+				table.save(fileName);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
 	}
 	public static void load(String fileName){
-		try {
-			table.load(fileName);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		commands.add(() -> {
+			try {
+				table.load(fileName);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
 	}
 	private static Color getColorFromType(int t) {
 		Color ans = Color.GRAY;
@@ -91,7 +107,7 @@ public class Ex2GUI {
 			StdDrawEx2.line(xs, 0, xs, max_y);
 			int yy = max_y - (y + 1);
 			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			StdDrawEx2.text(xc, max_y + y_height, Ex2Sheet.columnName(y));
 		}
 	}
 	/**
@@ -101,14 +117,16 @@ public class Ex2GUI {
 		StdDrawEx2.setPenColor(StdDrawEx2.BLACK);
 		int max_y = table.height();
 		int maxx = table.width();
+		refreshShown(maxx, max_y);
+		// an async sheet is drawn from its published snapshot: the live cells are changed by its worker meanwhile
+		SheetSnapshot published = table instanceof Ex2Sheet ? ((Ex2Sheet) table).snapshot() : null;
 		double x_space = Ex2Utils.GUI_X_SPACE, x_start = Ex2Utils.GUI_X_START;
 		double y_height = Ex2Utils.GUI_Y_TEXT_START;
 		for (int x = 0; x < maxx; x = x + 1) {
 			double xc = x_start + x * x_space;
 			for (int y = 0; y < max_y; y = y + 1) {
-				String w = table.value(x, y);//""+abc[x]+y;
-				Cell cc = table.get(x, y);
-				int t = cc.getType();
+				String w = shown != null ? shown[x][y] : table.value(x, y);//""+abc[x]+y;
+				int t = published != null ? published.typeAt(x, y) : table.get(x, y).getType();
 				StdDrawEx2.setPenColor(getColorFromType(t));
 				int max = Math.min(Ex2Utils.MAX_CHARS, w.length());
 				w = w.substring(0, max);
@@ -118,6 +136,45 @@ public class Ex2GUI {
 		}
 	}
 
+	/**
+	 * Re-reads only the cells an Ex2Sheet reports as changed (all of them the first time, or after a resize;
+	 * after a load the cells it does not report are empty).
+	 */
+	private static void refreshShown(int maxx, int max_y) {
+		if (!(table instanceof Ex2Sheet)) {
+			return;
+		}
+		Ex2Sheet sheet = (Ex2Sheet) table;
+		if (shown == null || shown.length != maxx || shown[0].length != max_y) {
+			sheet.changedCells(); // everything is read below
+			shown = new String[maxx][max_y];
+			for (int x = 0; x < maxx; x = x + 1) {
+				for (int y = 0; y < max_y; y = y + 1) {
+					shown[x][y] = table.value(x, y);
+				}
+			}
+			return;
+		}
+		if (sheet.changedAll()) {
+			for (String[] column : shown) {
+				Arrays.fill(column, Ex2Utils.EMPTY_CELL);
+			}
+		}
+		for (long c : sheet.changedCells()) {
+			shown[Ex2Sheet.unpackX(c)][Ex2Sheet.unpackY(c)] = table.value(Ex2Sheet.unpackX(c), Ex2Sheet.unpackY(c));
+		}
+	}
+
+	/**
+	 * Draws a "recalculating" indicator while the (async) sheet has edits that are not presented yet.
+	 */
+	private static void drawStatus() {
+		if (table instanceof Ex2Sheet && ((Ex2Sheet) table).isRecalculating()) {
+			StdDrawEx2.setPenColor(StdDrawEx2.BOOK_RED);
+			StdDrawEx2.text(Ex2Utils.GUI_X_START, Ex2Utils.MAX_X - 1, "recalculating...");
+		}
+	}
+
 	/** input a content into cell(xx,yy) if it is within this SpreadSheet.
 	 *
 	 * @param xx the x coordinate of the required cell.
@@ -137,13 +194,8 @@ public class Ex2GUI {
 				table.set(xx,yy,s1);
 			}
 			else {
-				table.set(xx, yy, c);
-				int[][] calc_d = table.depth();
-				if (calc_d[xx][yy] == Ex2Utils.ERR_CYCLE_FORM) {
-					table.get(xx,yy).setType(Ex2Utils.ERR_CYCLE_FORM);
-				}
+				table.set(xx, yy, c); // cycles are marked by the recalculation itself
 			}
-			table.eval();
 			StdDrawEx2.resetXY();
 		}
 	}
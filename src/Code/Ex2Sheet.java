@@ -1,27 +1,96 @@
 package Code;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class Ex2Sheet implements Sheet {
-    private SCell[][] table;
-    private Map<String, Set<String>> dependencies = new HashMap<>();
+    private CellStore store; // the cells, and their computed values (of NUMBER and FORM cells) with their CellValue kinds
+    private ColumnIndex[] indexes; // by x: the aggregates index of the column, null until a range refers to it
+    private DependencyGraph graph; // precedents and dependents of every cell, by id (the slot of the cell in the store)
+    private int[][] cycles; // by id: the (shared) members of the cycle the cell is on, null if none
+    private int[] work; // scratch space of graph.size() cells for cones (used by one recalculation at a time)
 
-    private String cellKey(int x, int y) {
-        return x + "," + y;
+    // changed cells (see changedCells): flagged when written, collected at the end of each recalculation,
+    // and reported once the results are visible to value() (in async mode: once the snapshot is published)
+    private boolean[] changed; // by id, flagged during the current recalculation
+    private long[] recent = new long[16]; // collected and not reported yet (packed), owned by the recalculating thread
+    private int recentSize = 0;
+    private final Object reportLock = new Object(); // guards the fields below
+    private long[] report = new long[16]; // packed, may repeat a cell (see compactReport)
+    private int reportSize = 0;
+    private boolean reportAll = false; // every cell of the sheet changed (it was loaded), see changedAll
+    private ForkJoinPool pool = null; // not null iff recalculations run in parallel
+    private boolean[] dirty = null; // not null iff lazy: the cells whose stored values are out of date, by id
+    private int[] emptied = new int[16]; // cells left empty, or referred to by fewer formulas, see releaseSlots
+    private int emptiedCount = 0;
+
+    // batch edits (see beginBatch): the cells edited since the batch began, recalculated once at commit
+    private int batchDepth = 0;
+    private int[] batchRoots = new int[16];
+    private int batchSize = 0;
+    private List<Edit> batchEdits = new ArrayList<>(); // in async mode, submitted together at commit
+
+    // dependency depths (see depth): kept by the cells (SCell.setOrder), brought up to date by depth() along the
+    // cones of the cells edited since the previous call
+    private int[] depthRoots = new int[16];
+    private int depthRootCount = 0;
+    private boolean depthAll = true; // every depth is out of date (a new or loaded sheet)
+    private int[][] depthMatrix = null; // the last result of depth()
+    private long[] depthCleared = new long[16]; // the cells whose slots were released since, at depth 0 (packed)
+    private int depthClearedCount = 0;
+
+    // background recalculation (see setAsync): edits are queued by set() and applied by the worker thread
+    private Thread worker = null; // not null iff async
+    private final ArrayDeque<Edit> edits = new ArrayDeque<>(); // also the monitor of pending
+    private int pending = 0; // edits submitted and not published yet
+    private RuntimeException failure = null; // thrown by applying a queued edit, rethrown by awaitRecalculation
+    private volatile SheetSnapshot snapshot = null; // the last consistent state, read by value() in async mode
+
+    private int compileThreshold = 100; // interpreted evaluations of a formula template before it is compiled
+    private final Map<String, FormulaTemplate> templates = new HashMap<>(); // shared by formulas of the same relative shape, see release
+    private final Map<String, SCell> texts = new HashMap<>(); // the shared cell of each text, see release
+    private int maxIterations = 0; // > 0 iff cycles are computed iteratively (see setIterative)
+
+    // recalculations of fewer cells are not worth the task scheduling overhead
+    private static final int PARALLEL_MIN_CELLS = 256;
+    // recalculations of fewer cells are not worth grouping into blocks (see BlockRecalc)
+    private static final int BLOCK_MIN_CELLS = 64;
+
+    /**
+     * Returned by scanCell for a string which is not a cell name (pack(-1, -1)).
+     */
+    public static final long NOT_A_CELL = -1L;
+
+    // cells are identified in the dependency graph by their slot in the store (-1 for a cell without one)
+    private int id(int x, int y) {
+        return store.slot(x, y);
+    }
+
+    int xOf(int id) {
+        return store.x(id);
+    }
+
+    int yOf(int id) {
+        return store.y(id);
     }
 
 
     public Ex2Sheet(int x, int y) {
-        table = new SCell[x][y];
-        for (int i = 0; i < x; i++) {
-            for (int j = 0; j < y; j++) {
-                table[i][j] = new SCell("");
-            }
-        }
+        this(new DenseCellStore(x, y));
+    }
+
+    /**
+     * A sheet on the given (empty) storage backend, e.g., a SparseCellStore for a large sheet which is mostly empty,
+     * a TiledCellStore for a large sheet with dense regions, or an OffHeapCellStore for a very large numeric sheet.
+     */
+    public Ex2Sheet(CellStore store) {
+        reset(store);
         eval();
     }
 
@@ -29,178 +98,833 @@ public class Ex2Sheet implements Sheet {
         this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
     }
 
+    /**
+     * Returns the last computed value of the x,y cell, no evaluation takes place here:
+     * the cached results are kept up to date by set, eval and load.
+     * In lazy mode the cell (and the out of date cells it depends on) is computed first, if needed.
+     * In async mode this is the value in the last published snapshot.
+     */
     @Override
     public String value(int x, int y) {
+        SheetSnapshot published = snapshot;
+        if (published != null) {
+            return published.value(x, y);
+        }
         if (isIn(x, y)) {
-            String cellValue = eval(x, y);
-            // Check if the value is explicitly set to "0.0"
-            if (table[x][y].getType() == Ex2Utils.ERR_FORM_FORMAT && !cellValue.equals("-2.0")){
-                table[x][y].setType(Ex2Utils.ERR_FORM_FORMAT);
-                return cellValue;
-            }
-            if (table[x][y].getType() == Ex2Utils.ERR_FORM_FORMAT){
-
-                return Ex2Utils.ERR_FORM;
-            }
-            if (table[x][y].getType() == Ex2Utils.ERR_CYCLE_FORM){
-                return Ex2Utils.ERR_CYCLE;
-            }
-            if ("0.0".equals(cellValue)) {
-                return "0.0";  // Explicitly show "0.0" if it's an explicit value
-            }
-            // If the evaluated value is an empty string, return an empty value
-            if (cellValue.isEmpty()) {
-                return "";  // Return empty string for empty cells
-            }
-
-            return cellValue;  // Return the evaluated value
+            pull(x, y);
+            return display(x, y);
         }
         return Ex2Utils.EMPTY_CELL;
     }
 
+    // the string presented for a cell, derived from its stored kind and value - the only place values become strings
+    private String display(int x, int y) {
+        int kind = store.kind(x, y);
+        SCell cell = kind == CellValue.TEXT ? store.cell(x, y) : null; // only a text presents the data of its cell
+        return CellValue.toString(kind, store.value(x, y), cell == null ? Ex2Utils.EMPTY_CELL : cell.getData());
+    }
+
+    /**
+     * @return the last computed value of the x,y cell, meaningful when its kind is CellValue.NUMBER (see setAsync).
+     */
+    public double valueAt(int x, int y) {
+        SheetSnapshot published = snapshot;
+        return published != null ? published.valueAt(x, y) : store.value(x, y);
+    }
+
+    /**
+     * @return the kind (see CellValue) of the computed value of the x,y cell, see valueAt.
+     */
+    public int kindAt(int x, int y) {
+        SheetSnapshot published = snapshot;
+        return published != null ? published.kindAt(x, y) : store.kind(x, y);
+    }
+
+    // the value and kind in the store, read by the evaluation (on the worker thread in async mode)
+    double storedValue(int x, int y) {
+        return store.value(x, y);
+    }
 
+    int storedKind(int x, int y) {
+        return store.kind(x, y);
+    }
+
+    /**
+     * @return the storage backend of this sheet (replaced by load, with a new store of the same kind).
+     */
+    public CellStore getStore() {
+        return store;
+    }
 
+    /**
+     * @return a copy of the x,y cell, whose setData sets the data of the cell (see set).
+     */
     @Override
     public SCell get(int x, int y) {
-        return isIn(x, y) ? table[x][y] : null;
+        if (!isIn(x, y)) return null;
+        idle();
+        return SCell.copy(store.cell(x, y), this, x, y);
     }
 
     @Override
     public SCell get(String cords) {
-        int[] coord = cellCoordinates(cords);
-        return get(coord[0], coord[1]);
+        long cell = scanCell(cords, 0, cords.length());
+        return cell == NOT_A_CELL ? null : get(unpackX(cell), unpackY(cell));
     }
 
     @Override
     public int width() {
-        return table.length;
+        return store.width();
     }
 
     @Override
     public int height() {
-        return table[0].length;
+        return store.height();
     }
 
     @Override
     public void set(int x, int y, String s) {
         if (isIn(x, y)) {
-            table[x][y].setData(s);
-            eval();
+            if (worker != null) {
+                if (batchDepth > 0) {
+                    batchEdits.add(new Edit(x, y, s));
+                } else {
+                    submit(new Edit(x, y, s));
+                }
+                return;
+            }
+            int id = edit(x, y, s);
+            if (batchDepth > 0) {
+                if (batchSize == batchRoots.length) {
+                    batchRoots = Arrays.copyOf(batchRoots, batchSize * 2);
+                }
+                batchRoots[batchSize++] = id;
+            } else {
+                update(new int[]{id}, 1, work);
+                releaseSlots();
+            }
         }
     }
 
-    @Override
-    public void eval() {
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                eval(i, j); // Evaluate each cell
+    /**
+     * Begins a batch of edits: until the matching commit(), set() only changes the data of the cells, and the
+     * values (and errors) of the edited cells and their dependents are recalculated once, at commit.
+     * Batches may be nested, the outermost commit recalculates.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Ends the current batch of edits, see beginBatch().
+     * @throws IllegalStateException if no batch has begun.
+     */
+    public void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("commit() without beginBatch()");
+        }
+        if (--batchDepth > 0) return;
+        if (worker != null) {
+            submitAll(batchEdits);
+            batchEdits = new ArrayList<>();
+            return;
+        }
+        int n = batchSize;
+        batchSize = 0;
+        update(batchRoots, n, work);
+        releaseSlots();
+    }
+
+    public boolean isInBatch() {
+        return batchDepth > 0;
+    }
+
+    /**
+     * Sets the data of many cells at once, with a single recalculation (see beginBatch).
+     * @param edits the new data of each cell, cells outside of this sheet are ignored.
+     */
+    public void setAll(Map<Index2D, String> edits) {
+        beginBatch();
+        try {
+            for (Map.Entry<Index2D, String> e : edits.entrySet()) {
+                set(e.getKey().getX(), e.getKey().getY(), e.getValue());
             }
+        } finally {
+            commit();
         }
     }
 
-    @Override
-    public String eval(int x, int y) {
-        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+    // recalculates the first k roots and their dependents into cells (or in lazy mode marks them out of date),
+    // returns the number of recalculated cells
+    private int update(int[] roots, int k, int[] cells) {
+        addDepthRoots(roots, k);
+        if (dirty != null) {
+            int j = 0;
+            for (int i = 0; i < k; i++) {
+                if (!dirty[roots[i]]) roots[j++] = roots[i]; // the dependents of a dirty cell are dirty already
+            }
+            int n = graph.cone(roots, j, cells);
+            for (int i = 0; i < n; i++) {
+                dirty[cells[i]] = true;
+            }
+            return 0;
+        }
+        int n = graph.cone(roots, k, cells);
+        recalculate(cells, n);
+        return n;
+    }
 
-        SCell cell = table[x][y];
-        if (cell.isVisited()) {
-            // If the cell is already being evaluated, it's a cycle
-            cell.setType(Ex2Utils.ERR_CYCLE_FORM);
-            return Ex2Utils.ERR_CYCLE;
+    /**
+     * Turns lazy evaluation on or off. In lazy mode set() only marks the edited cell and its dependents
+     * as out of date, and a cell is computed when its value is requested (value or eval(x, y)) - together
+     * with the out of date cells it depends on, and nothing else.
+     * Turning lazy mode off computes all the cells which are still out of date. Lazy mode turns async mode off.
+     * @throws IllegalStateException if the mode changes inside a batch (see beginBatch).
+     */
+    public void setLazy(boolean lazy) {
+        if (lazy == isLazy()) return;
+        if (isInBatch()) {
+            throw new IllegalStateException("setLazy() inside a batch");
         }
+        setAsync(false);
+        if (lazy) {
+            dirty = new boolean[graph.size()];
+        } else {
+            boolean[] pending = dirty;
+            dirty = null;
+            int n = 0;
+            int[] cells = new int[pending.length];
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i]) cells[n++] = i;
+            }
+            recalculate(cells, n);
+        }
+    }
 
+    public boolean isLazy() {
+        return dirty != null;
+    }
 
-        if (cell.getType() == Ex2Utils.TEXT) {
-            return cell.getData();
+    // in lazy mode, brings the x,y cell up to date (dirty cells only ever depend on dirty or up to date cells)
+    private void pull(int x, int y) {
+        int id = id(x, y);
+        if (dirty == null || id < 0 || !dirty[id]) return;
+        int[] cells = work;
+        int n = graph.upstream(id, dirty, cells);
+        recalculate(cells, n);
+        for (int i = 0; i < n; i++) {
+            dirty[cells[i]] = false;
         }
-        if (cell.getType() == Ex2Utils.NUMBER) {
-                return String.valueOf(Double.parseDouble(cell.getData())); // Return non-formula cells directly
+    }
+
+    // changes the data of a cell, its value is recalculated later; returns the id of the cell
+    private int edit(int x, int y, String s) {
+        int id = store.allocate(x, y);
+        ensureSlots();
+        SCell cell = store.cell(x, y);
+        String data = cell == null ? Ex2Utils.EMPTY_CELL : cell.getData();
+        if (!s.equals(data) && (cell == null || cell.getType() == Ex2Utils.TEXT)) {
+            changed[id] = true; // a new text is not a change of kind or value
+        }
+        FormulaPlan replaced = cell == null ? null : cell.getPlan(); // released once the new plan holds its template
+        store.setCell(x, y, cellOf(s, x, y, cell));
+        release(replaced);
+        if (cell != null && cell.isShared() && cell.release()) {
+            texts.remove(cell.getData()); // the last cell with this text
+        }
+        updateDependencies(x, y);
+        if (s.isEmpty()) {
+            addEmptied(id);
+        }
+        return id;
+    }
+
+    private void addEmptied(int id) {
+        if (emptiedCount == emptied.length) {
+            Arrays.sort(emptied); // drops the repeated cells first, lazy mode keeps some across edits
+            int n = 0;
+            for (int i = 0; i < emptiedCount; i++) {
+                if (n == 0 || emptied[i] != emptied[n - 1]) emptied[n++] = emptied[i];
+            }
+            emptiedCount = n;
+            if (n > emptied.length / 2) {
+                emptied = Arrays.copyOf(emptied, emptied.length * 2);
             }
+        }
+        emptied[emptiedCount++] = id;
+    }
 
-        try {
-            cell.setVisited(true); // Mark the cell as visited
-            double result = cell.evaluate(this, cell);
-            cell.setVisited(false); // Clear the visited state
-            if(cell.getType() == Ex2Utils.ERR_FORM_FORMAT){
-                throw new IOException("Invalid sheet dimensions in file.");
+    // frees the slots of the emptied cells which nothing refers to (see CellStore.release), after each update
+    private void releaseSlots() {
+        int kept = 0;
+        for (int i = 0; i < emptiedCount; i++) {
+            int c = emptied[i], x = xOf(c), y = yOf(c);
+            if (x < 0 || store.cell(x, y) != null || graph.hasPrecedents(c) || graph.dependentCount(c) > 0) {
+                continue; // released already, set again, or still referred to
+            }
+            if ((dirty != null && dirty[c]) || cycles[c] != null) {
+                emptied[kept++] = c; // lazy mode: released once computed, by a later call
+                continue;
+            }
+            if (depthMatrix != null) { // the next depth() sets it to 0, and the cells with ranges over it
+                graph.forEachAggregateAt(c, a -> {
+                    for (int j = 0; j < graph.userCount(a); j++) {
+                        addDepthRoots(new int[]{graph.user(a, j)}, 1);
+                    }
+                });
+            }
+            if (!store.release(x, y)) continue;
+            graph.release(c);
+            if (depthMatrix != null && depthClearedCount == store.slots()) {
+                depthMatrix = null; // as many as the cells with slots: the next depth() starts over
+                depthAll = true;
+                depthRootCount = 0;
+                depthClearedCount = 0;
+            } else if (depthMatrix != null) {
+                if (depthClearedCount == depthCleared.length) {
+                    depthCleared = Arrays.copyOf(depthCleared, depthClearedCount * 2);
+                }
+                depthCleared[depthClearedCount++] = pack(x, y);
             }
-            return String.valueOf(result);
-        } catch (Exception e) {
-            cell.setType(Ex2Utils.ERR_FORM_FORMAT); // Set error type if evaluation fails
-            return Ex2Utils.ERR_FORM;
         }
+        emptiedCount = kept;
     }
 
+    // forgets the plan of a replaced formula, and its template once no formula of this sheet has it
+    private void release(FormulaPlan plan) {
+        if (plan != null && plan.getTemplate().release()) {
+            templates.remove(plan.getTemplate().key());
+        }
+    }
 
+    // the cell to store for the data s of the x,y cell: null if empty, a shared cell for text, else the previous
+    // cell (unless it is shared or null) with its data set
+    private SCell cellOf(String s, int x, int y, SCell previous) {
+        if (s.isEmpty()) {
+            return null; // empty cells are not stored
+        }
+        if (SCell.isText(s)) {
+            SCell text = texts.computeIfAbsent(s, SCell::text);
+            text.retain();
+            return text;
+        }
+        SCell cell = previous == null || previous.isShared() ? new SCell(Ex2Utils.EMPTY_CELL) : previous;
+        cell.setData(s, x, y, templates);
+        return cell;
+    }
 
+    // starts over with an empty store (the sheet is recalculated and reported by the caller); in async mode, called
+    // once the worker is idle, the edits monitor orders these writes before its next batch (see submit)
+    private void reset(CellStore store) {
+        this.store = store;
+        templates.clear();
+        texts.clear();
+        depthAll = true;
+        depthRootCount = 0;
+        depthMatrix = null;
+        indexes = new ColumnIndex[store.width()];
+        int size = store.slots();
+        graph = new DependencyGraph(store);
+        cycles = new int[size][];
+        work = new int[size];
+        changed = new boolean[size];
+        synchronized (reportLock) {
+            reportSize = 0;
+        }
+        recentSize = 0;
+        emptiedCount = 0;
+        depthClearedCount = 0;
+        if (dirty != null) {
+            dirty = new boolean[size];
+        }
+    }
 
-    @Override
-    public boolean isIn(int xx, int yy) {
-        return xx >= 0 && yy >= 0 && xx < width() && yy < height();
+    // grows the arrays by id after slots were allocated in the store
+    private void ensureSlots() {
+        int n = store.slots();
+        if (n <= changed.length) return;
+        int size = Math.max(n, 2 * changed.length);
+        graph.grow(size);
+        cycles = Arrays.copyOf(cycles, size);
+        work = new int[size];
+        changed = Arrays.copyOf(changed, size);
+        if (dirty != null) {
+            dirty = Arrays.copyOf(dirty, size);
+        }
     }
 
-    @Override
-    public int[][] depth() {
-        int[][] depthMatrix = new int[width()][height()];
-        boolean[][] visited = new boolean[width()][height()];
-
-        for (int x = 0; x < width(); x++) {
-            for (int y = 0; y < height(); y++) {
-                if (!visited[x][y]) {
-                    if (!updateDepth(x, y, visited, new HashSet<>(), depthMatrix)) {
-                        // Set a special error depth if a cycle is detected
-                        depthMatrix[x][y] = Ex2Utils.ERR_CYCLE_FORM;
-                    }
+    /**
+     * Replaces the precedents of the x,y cell in the dependency graph with the
+     * references of its compiled formula (references outside the sheet are ignored).
+     * A referenced cell gets a slot, a range only its area (see DependencyGraph).
+     */
+    private void updateDependencies(int x, int y) {
+        for (int p : graph.precedents(id(x, y))) {
+            if (store.cell(xOf(p), yOf(p)) == null) {
+                addEmptied(p); // an empty cell this formula referred to
+            }
+        }
+        SCell cell = store.cell(x, y);
+        FormulaPlan plan = cell == null ? null : cell.getPlan();
+        if (plan == null) {
+            graph.setPrecedents(id(x, y), new int[0]);
+            return;
+        }
+        int n = 0;
+        int[] ids = new int[plan.size()];
+        for (int i = 0; i < plan.size(); i++) {
+            if (isIn(plan.refX(i), plan.refY(i))) {
+                ids[n++] = store.allocate(plan.refX(i), plan.refY(i));
+            }
+        }
+        int k = 0;
+        CellRange[] areas = new CellRange[plan.ranges()];
+        for (int i = 0; i < plan.ranges(); i++) {
+            CellRange range = plan.range(i);
+            if (!range.isIn(this)) continue;
+            for (int rx = range.minX(); rx <= range.maxX(); rx++) {
+                if (indexes[rx] == null) {
+                    indexes[rx] = new ColumnIndex(store, rx);
                 }
             }
+            areas[k++] = range;
         }
+        ensureSlots();
+        graph.setPrecedents(id(x, y), n == ids.length ? ids : Arrays.copyOf(ids, n),
+                k == areas.length ? areas : Arrays.copyOf(areas, k));
+    }
 
-        return depthMatrix;
+    /**
+     * @return the aggregates index of column x (which a range of this sheet refers to).
+     */
+    ColumnIndex columnIndex(int x) {
+        return indexes[x];
     }
 
-    private boolean updateDepth(int x, int y, boolean[][] visited, Set<String> stack, int[][] depthMatrix) {
-        if (!isIn(x, y)) return true;
-        if(table[x][y].getType() == Ex2Utils.ERR_CYCLE_FORM){
-            return false;
+    /**
+     * Evaluates the given cells once each, in topological order, so every formula reads
+     * the already computed (cached) results of its precedents.
+     * The strongly connected components of the cells give both this order and the cycles: all the members
+     * of a cycle are marked as such in one sweep (their dependents then evaluate to a cycle error as well),
+     * and the cycles the cells were on before are replaced (a cycle through a changed cell lies within its cone).
+     * In iterative mode the cycles are computed instead, each in its place in the evaluation order.
+     * The cells whose presented value changed are collected for changedCells().
+     */
+    private void recalculate(int[] cells, int n) {
+        evaluate(cells, n);
+        for (int i = 0; i < n; i++) {
+            int c = cells[i];
+            if (changed[c]) {
+                changed[c] = false;
+                addRecent(xOf(c), yOf(c));
+            }
         }
+        if (worker == null) {
+            report();
+        }
+    }
 
-        String cellId = x + "," + y;
-        if (stack.contains(cellId)) {
-            table[x][y].setType(Ex2Utils.ERR_CYCLE_FORM);
-            return false;
-        } // Cycle detected
+    private void evaluate(int[] cells, int n) {
+        int[] order = new int[n];
+        int[] starts = new int[n + 1];
+        int k = graph.components(cells, n, order, starts);
+        if (maxIterations > 0) {
+            for (int i = 0; i < k; i++) {
+                if (graph.isCycle(order, starts[i], starts[i + 1])) {
+                    recalculateIteratively(order, starts, k);
+                    return;
+                }
+            }
+        }
+        int m = 0; // the cells which are not on a cycle, moved to the front of order (in evaluation order)
+        for (int i = 0; i < k; i++) {
+            int from = starts[i], to = starts[i + 1];
+            if (graph.isCycle(order, from, to)) {
+                int[] members = Arrays.copyOfRange(order, from, to);
+                for (int c : members) {
+                    cycles[c] = members;
+                    markCycle(xOf(c), yOf(c));
+                }
+            } else {
+                cycles[order[from]] = null;
+                order[m++] = order[from];
+            }
+        }
+        if (pool != null && m >= PARALLEL_MIN_CELLS) {
+            new ParallelRecalc(graph, order, m, id -> compute(xOf(id), yOf(id))).run(pool, new int[m]);
+            return;
+        }
+        if (m >= BLOCK_MIN_CELLS) {
+            new BlockRecalc(this, graph, order, m, id -> compute(xOf(id), yOf(id))).run();
+            return;
+        }
+        for (int i = 0; i < m; i++) {
+            compute(xOf(order[i]), yOf(order[i]));
+        }
+    }
 
-        if (visited[x][y]) {
-            return true;
-        }; // Already processed
+    // evaluates the components in order, iterating the ones that are cycles (Gauss-Seidel)
+    private void recalculateIteratively(int[] order, int[] starts, int k) {
+        for (int i = 0; i < k; i++) {
+            int from = starts[i], to = starts[i + 1];
+            if (!graph.isCycle(order, from, to)) {
+                cycles[order[from]] = null;
+                compute(xOf(order[from]), yOf(order[from]));
+                continue;
+            }
+            int[] members = Arrays.copyOfRange(order, from, to);
+            for (int c : members) {
+                cycles[c] = members;
+                int x = xOf(c), y = yOf(c);
+                if (store.kind(x, y) != CellValue.NUMBER) {
+                    write(x, y, CellValue.NUMBER, 0); // the initial guess
+                }
+            }
+            iterate(members);
+        }
+    }
+
+    /**
+     * Re-evaluates the members of a cycle, each from the latest values of the others, until no value changes
+     * by Ex2Utils.EPS or more (and no kind changes), or maxIterations passes were made. The cells keep the values
+     * of the last pass.
+     */
+    private void iterate(int[] members) {
+        for (int pass = 0; pass < maxIterations; pass++) {
+            boolean converged = true;
+            for (int c : members) {
+                int x = xOf(c), y = yOf(c);
+                int kind = store.kind(x, y);
+                double value = store.value(x, y);
+                compute(x, y);
+                if (store.kind(x, y) != kind || (kind == CellValue.NUMBER && !(Math.abs(store.value(x, y) - value) < Ex2Utils.EPS))) {
+                    converged = false;
+                }
+            }
+            if (converged) return;
+        }
+    }
+
+    /**
+     * Turns iterative calculation on or off. By default every cell on a cycle is an ERR_CYCLE_FORM error,
+     * in iterative mode the cells of each cycle (only them) are re-evaluated until their values converge,
+     * see setMaxIterations. Cycles stay reported by cycle(x, y) either way.
+     * Recalculations with iterated cycles run sequentially. The cells on a cycle, and their dependents, are
+     * recalculated in the new mode right away.
+     */
+    public void setIterative(boolean iterative) {
+        setMaxIterations(iterative ? Math.max(maxIterations, 100) : 0);
+    }
+
+    public boolean isIterative() {
+        return maxIterations > 0;
+    }
+
+    /**
+     * Sets the maximal number of passes over a cycle in iterative mode (a value <= 0 turns iterative mode off).
+     * The cells on a cycle, and their dependents, are recalculated with the new number of passes right away.
+     */
+    public void setMaxIterations(int passes) {
+        awaitRecalculation();
+        if (Math.max(passes, 0) == maxIterations) return;
+        this.maxIterations = Math.max(passes, 0);
+        int k = 0;
+        int[] roots = new int[cycles.length];
+        for (int id = 0; id < cycles.length; id++) {
+            if (cycles[id] != null) roots[k++] = id;
+        }
+        int[] cells = work;
+        int n = update(roots, k, cells);
+        if (snapshot != null) {
+            boolean[] changed = new boolean[width()];
+            for (int i = 0; i < n; i++) {
+                changed[xOf(cells[i])] = true;
+            }
+            snapshot = SheetSnapshot.of(snapshot, store, changed);
+            report();
+        }
+    }
 
-        visited[x][y] = true;
-        stack.add(cellId);
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * @return the cells of the cycle the x,y cell is on (empty if it is not on a cycle). A cell which only
+     * depends on a cycle is not on it. In lazy mode this reflects the last computation of the cell.
+     */
+    public List<Index2D> cycle(int x, int y) {
+        awaitRecalculation();
+        List<Index2D> ans = new ArrayList<>();
+        int id = isIn(x, y) ? id(x, y) : -1;
+        if (id >= 0 && cycles[id] != null) {
+            for (int c : cycles[id]) {
+                ans.add(new CellEntry(xOf(c), yOf(c)));
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * @return all the cycles of this sheet, see cycle(x, y).
+     */
+    public List<List<Index2D>> cycles() {
+        awaitRecalculation();
+        List<List<Index2D>> ans = new ArrayList<>();
+        for (int id = 0; id < cycles.length; id++) {
+            int[] members = cycles[id];
+            if (members != null && members[0] == id) { // reported once, by its first member
+                ans.add(cycle(xOf(id), yOf(id)));
+            }
+        }
+        return ans;
+    }
 
-        String data = table[x][y].getData();
-        if (data.startsWith("=")) {
-            for (String ref : data.substring(1).split("[^A-Za-z0-9]")) {
-                ref = ref.toUpperCase();
-                if (ref.matches("[A-Za-z]+[0-9]+")) {
-                    int[] coords = cellCoordinates(ref);
-                    if (!updateDepth(coords[0], coords[1], visited, stack, depthMatrix)) {
-                        table[x][y].setType(Ex2Utils.ERR_CYCLE_FORM);
-                        return false;
+    /**
+     * Turns parallel recalculation on or off: when on, large recalculations are scheduled as a
+     * dataflow of per-cell tasks on the common ForkJoinPool (see ParallelRecalc).
+     */
+    public void setParallel(boolean parallel) {
+        awaitRecalculation();
+        this.pool = parallel ? ForkJoinPool.commonPool() : null;
+    }
+
+    public boolean isParallel() {
+        return pool != null;
+    }
+
+    /**
+     * Sets the number of (successful) interpreted evaluations after which a formula template (shared by all the
+     * formulas of the same relative shape) is compiled into the faster method handle tier (see FormulaPlan).
+     * A value <= 0 keeps every formula interpreted.
+     */
+    public void setCompileThreshold(int evaluations) {
+        this.compileThreshold = evaluations;
+    }
+
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    @Override
+    public void eval() {
+        awaitRecalculation();
+        int n = 0; // the cells without a slot are empty
+        int[] cells = new int[store.slots()];
+        for (int i = 0; i < cells.length; i++) {
+            if (xOf(i) >= 0) cells[n++] = i; // not a free slot
+        }
+        recalculate(cells, n);
+        if (dirty != null) {
+            Arrays.fill(dirty, false);
+        }
+        if (snapshot != null) {
+            snapshot = SheetSnapshot.of(null, store, null);
+            report();
+        }
+    }
+
+    /**
+     * Computes the x,y cell from the stored values of its precedents and stores its own value.
+     * In lazy mode the out of date precedents of the cell are computed as well.
+     * A cell without a slot in the store is empty, and stays without one.
+     */
+    @Override
+    public String eval(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+        awaitRecalculation();
+        if (id(x, y) < 0) return Ex2Utils.EMPTY_CELL;
+        if (dirty != null && id(x, y) >= 0 && dirty[id(x, y)]) {
+            pull(x, y);
+        } else {
+            compute(x, y);
+        }
+        return display(x, y);
+    }
+
+    // eval(x, y) without producing the presented string
+    private void compute(int x, int y) {
+        if (store.type(x, y) == Ex2Utils.NUMBER) { // read without its cell, which the store may have to build
+            write(x, y, CellValue.NUMBER, store.number(x, y));
+            return;
+        }
+        SCell cell = store.cell(x, y);
+        if (cell == null) {
+            write(x, y, CellValue.EMPTY, 0);
+            return;
+        }
+        switch (cell.getType()) {
+            case Ex2Utils.TEXT:
+                write(x, y, cell.getData().isEmpty() ? CellValue.EMPTY : CellValue.TEXT, 0);
+                break;
+            default:
+                EvalContext ctx = EvalContext.current();
+                int kind = cell.evaluate(this, x, y, ctx);
+                write(x, y, kind, kind == CellValue.NUMBER ? ctx.result() : store.value(x, y));
+                cell.setType(CellValue.formType(kind));
+        }
+    }
+
+    private void markCycle(int x, int y) {
+        write(x, y, CellValue.ERR_CYCLE, store.value(x, y));
+        store.cell(x, y).setType(Ex2Utils.ERR_CYCLE_FORM);
+    }
+
+    // every computed result is stored here, so the column indexes are always up to date
+    private void write(int x, int y, int kind, double value) {
+        if (store.kind(x, y) != kind || (kind == CellValue.NUMBER && Double.compare(store.value(x, y), value) != 0)) {
+            changed[id(x, y)] = true;
+        }
+        store.set(x, y, kind, value);
+        if (indexes[x] != null) {
+            indexes[x].set(y, kind, value);
+        }
+    }
+
+    /**
+     * Stores the results of rows y..y+len-1 of column x, computed together by BlockRecalc, and updates the index of
+     * the column once. Rows of a negative kind are left unchanged, a form error keeps the last value of its row.
+     * @param kinds the kind (see CellValue) of the result of each row, from index 0.
+     * @param results the value of each row.
+     */
+    void writeBlock(int x, int y, int len, byte[] kinds, double[] results) {
+        for (int i = 0; i < len; i++) {
+            int k = kinds[i], row = y + i;
+            if (k < 0) continue;
+            double old = store.value(x, row), value = k == CellValue.NUMBER ? results[i] : old;
+            if (store.kind(x, row) != k || (k == CellValue.NUMBER && Double.compare(old, value) != 0)) {
+                changed[id(x, row)] = true;
+            }
+            store.set(x, row, k, value);
+            store.cell(x, row).setType(CellValue.formType(k));
+        }
+        if (indexes[x] != null) {
+            indexes[x].setAll(y, y + len - 1, store, x);
+        }
+    }
+
+    @Override
+    public boolean isIn(int xx, int yy) {
+        return xx >= 0 && yy >= 0 && xx < width() && yy < height();
+    }
+
+    /**
+     * Computes the depth of every cell: 0 for a cell with no references, else one more than the deepest cell
+     * it refers to. Cells on a cycle, or depending on one, get Ex2Utils.ERR_CYCLE_FORM.
+     * The depths are kept by the cells and only the cones of the cells edited since the previous call are
+     * recomputed, in the evaluation order of the dependency graph, without recursion. The returned matrix shares
+     * the columns in which no depth changed with the previous one, so it should not be modified.
+     */
+    @Override
+    public int[][] depth() {
+        awaitRecalculation();
+        int n;
+        int[] cells = work;
+        if (depthAll) {
+            n = 0; // the cells without a slot are at depth 0
+            for (int i = 0; i < store.slots(); i++) {
+                if (xOf(i) >= 0) cells[n++] = i;
+            }
+        } else {
+            int roots = 0;
+            for (int i = 0; i < depthRootCount; i++) {
+                if (xOf(depthRoots[i]) >= 0) depthRoots[roots++] = depthRoots[i]; // not released since
+            }
+            n = graph.cone(depthRoots, roots, cells);
+        }
+        int[] order = new int[n];
+        int[] starts = new int[n + 1];
+        int k = graph.components(cells, n, order, starts);
+        int[][] matrix = depthMatrix == null ? new int[width()][height()] : depthMatrix.clone();
+        boolean[] copied = new boolean[width()]; // the columns of matrix which are not shared with depthMatrix
+        for (int i = 0; i < depthClearedCount; i++) { // a cell with a formula since is in the cone, recomputed below
+            setDepth(matrix, copied, unpackX(depthCleared[i]), unpackY(depthCleared[i]), 0);
+        }
+        int[] areaDepths = new int[graph.aggregates()]; // one more than the deepest cell in the area of each aggregate
+        Arrays.fill(areaDepths, -1); // not known yet
+        int[] area = null;
+        for (int i = 0; i < k; i++) {
+            int from = starts[i], to = starts[i + 1];
+            int d = 0;
+            if (graph.isCycle(order, from, to)) {
+                d = Ex2Utils.ERR_CYCLE_FORM;
+            } else {
+                for (int p : graph.precedents(order[from])) {
+                    if (depthOf(p) == Ex2Utils.ERR_CYCLE_FORM) {
+                        d = Ex2Utils.ERR_CYCLE_FORM;
+                        break;
                     }
-                    depthMatrix[x][y] = Math.max(depthMatrix[x][y], depthMatrix[coords[0]][coords[1]] + 1);
+                    d = Math.max(d, depthOf(p) + 1);
+                }
+                // the cells of an area which are in the cone come before the cells referring to it
+                for (int a : graph.ranges(order[from])) {
+                    if (d == Ex2Utils.ERR_CYCLE_FORM) break;
+                    if (areaDepths[a] < 0) {
+                        area = area == null ? new int[graph.size()] : area;
+                        int deepest = areaDepth(a, area);
+                        areaDepths[a] = deepest == Ex2Utils.ERR_CYCLE_FORM ? 0 : deepest + 1; // 0: on or after a cycle
+                    }
+                    d = areaDepths[a] == 0 ? Ex2Utils.ERR_CYCLE_FORM : Math.max(d, areaDepths[a]);
                 }
             }
+            for (int j = from; j < to; j++) {
+                int c = order[j], x = xOf(c), y = yOf(c);
+                if (graph.hasPrecedents(c)) {
+                    store.cell(x, y).setOrder(d); // a cell with references is a formula, never a shared cell
+                }
+                setDepth(matrix, copied, x, y, d);
+            }
         }
+        depthAll = false;
+        depthRootCount = 0;
+        depthClearedCount = 0;
+        depthMatrix = matrix;
+        return matrix;
+    }
 
-        stack.remove(cellId);
-        return true;
+    // sets a depth in matrix, copying its column first unless it was copied from depthMatrix already
+    private void setDepth(int[][] matrix, boolean[] copied, int x, int y, int d) {
+        if (matrix[x][y] == d) return;
+        if (!copied[x] && depthMatrix != null) {
+            matrix[x] = matrix[x].clone();
+        }
+        copied[x] = true;
+        matrix[x][y] = d;
     }
 
+    // the depth of a cell, as of the last depth(): the cells without references are at depth 0
+    private int depthOf(int id) {
+        return graph.hasPrecedents(id) ? store.cell(xOf(id), yOf(id)).getOrder() : 0;
+    }
 
+    // the depth of the deepest cell in the area of an aggregate (the cells without a slot are at depth 0)
+    private int areaDepth(int aggregate, int[] cells) {
+        int d = 0;
+        for (int i = graph.cellsIn(aggregate, cells) - 1; i >= 0; i--) {
+            if (depthOf(cells[i]) == Ex2Utils.ERR_CYCLE_FORM) return Ex2Utils.ERR_CYCLE_FORM;
+            d = Math.max(d, depthOf(cells[i]));
+        }
+        return d;
+    }
 
+    // remembers edited cells for the next depth(); past as many cells as there are, all the depths are recomputed
+    private void addDepthRoots(int[] roots, int k) {
+        if (depthAll) return;
+        if (depthRootCount + k > store.slots()) {
+            depthAll = true;
+            depthRootCount = 0;
+            return;
+        }
+        if (depthRootCount + k > depthRoots.length) {
+            depthRoots = Arrays.copyOf(depthRoots, Math.max(depthRootCount + k, 2 * depthRoots.length));
+        }
+        System.arraycopy(roots, 0, depthRoots, depthRootCount, k);
+        depthRootCount += k;
+    }
 
     @Override
     public void load(String fileName) throws IOException {
+        awaitRecalculation();
         try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
             // Read dimensions from the first line
             String[] dimensions = reader.readLine().split(",");
@@ -212,13 +936,8 @@ public class Ex2Sheet implements Sheet {
                 throw new IOException("Invalid sheet dimensions in file.");
             }
 
-            // Resize the table
-            table = new SCell[newWidth][newHeight];
-            for (int i = 0; i < newWidth; i++) {
-                for (int j = 0; j < newHeight; j++) {
-                    table[i][j] = new SCell(""); // Ensure every cell is initialized
-                }
-            }
+            // Resize the table (a new store of the same kind, empty cells are not stored)
+            reset(store.empty(newWidth, newHeight));
 
             // Load data into the table
             int rowIndex = 0;
@@ -240,8 +959,15 @@ public class Ex2Sheet implements Sheet {
                     row = paddedRow;
                 }
 
+                if (rowIndex >= newWidth) {
+                    rowIndex++; // reported as a row count mismatch below
+                    continue;
+                }
                 for (int j = 0; j < newHeight; j++) {
-                    table[rowIndex][j].setData(row[j]);
+                    if (!row[j].isEmpty()) {
+                        store.allocate(rowIndex, j);
+                        store.setCell(rowIndex, j, cellOf(row[j], rowIndex, j, null));
+                    }
                 }
                 rowIndex++;
             }
@@ -253,7 +979,23 @@ public class Ex2Sheet implements Sheet {
                 );
             }
 
-            eval(); // Re-evaluate the table
+            ensureSlots();
+            for (int id = 0; id < store.slots(); id++) { // the cells referenced by formulas are allocated on the way
+                if (store.cell(xOf(id), yOf(id)) != null) {
+                    updateDependencies(xOf(id), yOf(id));
+                }
+            }
+            if (dirty == null) {
+                eval(); // Re-evaluate the table (and publish a new snapshot in async mode)
+            } else {
+                Arrays.fill(dirty, true); // computed on demand
+            }
+            synchronized (reportLock) {
+                reportAll = true; // every cell of a loaded sheet is new: the ones with a slot are reported
+                for (int id = 0; id < store.slots(); id++) {
+                    addToReport(pack(xOf(id), yOf(id)));
+                }
+            }
         } catch (IOException | NumberFormatException e) {
             throw new IOException("Error loading the sheet: " + e.getMessage(), e);
         }
@@ -261,6 +1003,7 @@ public class Ex2Sheet implements Sheet {
 
     @Override
     public void save(String fileName) throws IOException {
+        awaitRecalculation();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
             // Save the dimensions
             writer.write(width() + "," + height());
@@ -270,7 +1013,8 @@ public class Ex2Sheet implements Sheet {
             for (int i = 0; i < width(); i++) {
                 StringBuilder row = new StringBuilder();
                 for (int j = 0; j < height(); j++) {
-                    row.append(table[i][j].getData());
+                    SCell cell = store.cell(i, j);
+                    row.append(cell == null ? Ex2Utils.EMPTY_CELL : cell.getData());
                     if (j < height() - 1) {
                         row.append(","); // Separate cells with a comma
                     }
@@ -285,11 +1029,304 @@ public class Ex2Sheet implements Sheet {
 
 
     public int[] cellCoordinates(String cords) {
-        String column = cords.replaceAll("[^A-Za-z]", "");
-        String row = cords.replaceAll("[^0-9]", "");
-        int colIndex = column.charAt(0) - 'A'; // Assuming single letter columns
-        int rowIndex = Integer.parseInt(row);
-        return new int[]{colIndex, rowIndex};
+        return parseCoordinates(cords);
+    }
+
+    /**
+     * Translates a cell name into its x,y coordinates, e.g., "B3" into [1][3] and "AA10" into [26][10] (no range checks).
+     * @return the coordinates, or [-1][-1] if cords is not a cell name (see scanCell).
+     */
+    public static int[] parseCoordinates(String cords) {
+        long cell = scanCell(cords, 0, cords.length());
+        return new int[]{unpackX(cell), unpackY(cell)};
+    }
+
+    /**
+     * Scans the cell name in s[from..to), without allocating: one or more letters (a base-26 column, A..Z then
+     * AA, AB ... XFD ...; either case) followed by one or more digits (the row).
+     * Columns and rows too large for an int saturate at Integer.MAX_VALUE, far outside of any sheet.
+     * @return the packed coordinates of the cell (see pack), or NOT_A_CELL if s[from..to) is not a cell name.
+     */
+    public static long scanCell(CharSequence s, int from, int to) {
+        int i = from, x = 0, y = 0;
+        for (; i < to; i++) {
+            int letter = Character.toUpperCase(s.charAt(i)) - 'A';
+            if (letter < 0 || letter >= 26) break;
+            x = x > (Integer.MAX_VALUE - 26) / 26 ? Integer.MAX_VALUE : x * 26 + letter + 1; // bijective base 26
+        }
+        if (i == from || i == to) return NOT_A_CELL;
+        for (int j = i; j < to; j++) {
+            int digit = s.charAt(j) - '0';
+            if (digit < 0 || digit > 9) return NOT_A_CELL;
+            y = y > (Integer.MAX_VALUE - 9) / 10 ? Integer.MAX_VALUE : y * 10 + digit;
+        }
+        return pack(x == Integer.MAX_VALUE ? x : x - 1, y);
+    }
+
+    /**
+     * @return the name of the column x, e.g., "A" for 0, "Z" for 25, "AA" for 26 (the inverse of scanCell).
+     */
+    public static String columnName(int x) {
+        char[] name = new char[8];
+        int i = name.length;
+        for (x++; x > 0; x = (x - 1) / 26) {
+            name[--i] = (char) ('A' + (x - 1) % 26);
+        }
+        return new String(name, i, name.length - i);
+    }
+
+
+    /**
+     * Returns the cells whose presented value (see value(x, y)) changed since the previous call, each once, so that
+     * consumers such as the GUI only re-read these.
+     * @return the changed cells, as packed coordinates (see pack).
+     */
+    public long[] changedCells() {
+        synchronized (reportLock) {
+            long[] ans = Arrays.copyOf(report, compactReport());
+            reportSize = 0;
+            reportAll = false;
+            return ans;
+        }
+    }
+
+    /**
+     * @return true iff the sheet was loaded since the previous changedCells(), which then reports only the cells with slots.
+     */
+    public boolean changedAll() {
+        synchronized (reportLock) {
+            return reportAll;
+        }
     }
 
+    /**
+     * @return the x,y coordinates packed in a long (x in the high half), as used by changedCells().
+     */
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long cell) {
+        return (int) (cell >>> 32);
+    }
+
+    public static int unpackY(long cell) {
+        return (int) cell;
+    }
+
+    // moves the collected changes to the report read by changedCells()
+    private void report() {
+        synchronized (reportLock) {
+            for (int i = 0; i < recentSize; i++) {
+                addToReport(recent[i]);
+            }
+        }
+        recentSize = 0;
+    }
+
+    private void addToReport(long cell) {
+        if (reportSize == report.length && compactReport() > report.length / 2) {
+            report = Arrays.copyOf(report, report.length * 2);
+        }
+        report[reportSize++] = cell;
+    }
+
+    // sorts the report and drops the repeated cells, returns its new size
+    private int compactReport() {
+        Arrays.sort(report, 0, reportSize);
+        int n = 0;
+        for (int i = 0; i < reportSize; i++) {
+            if (n == 0 || report[i] != report[n - 1]) report[n++] = report[i];
+        }
+        return reportSize = n;
+    }
+
+    private void addRecent(int x, int y) {
+        if (recentSize == recent.length) {
+            recent = Arrays.copyOf(recent, recentSize * 2);
+        }
+        recent[recentSize++] = pack(x, y);
+    }
+
+    /**
+     * Turns the background recalculation on or off: set() queues the edit for a worker thread, value(), valueAt()
+     * and kindAt() read the last published snapshot, and the other methods wait for the queued edits first.
+     * @throws IllegalStateException if the mode changes inside a batch (see beginBatch).
+     */
+    public void setAsync(boolean async) {
+        if (async == isAsync()) return;
+        if (isInBatch()) {
+            throw new IllegalStateException("setAsync() inside a batch");
+        }
+        if (async) {
+            setLazy(false);
+            snapshot = SheetSnapshot.of(null, store, null);
+            worker = new Thread(this::work, "Ex2Sheet-recalc");
+            worker.setDaemon(true);
+            worker.start();
+        } else {
+            try {
+                awaitRecalculation();
+            } finally {
+                Thread stopped = worker;
+                synchronized (edits) {
+                    worker = null;
+                    edits.notifyAll();
+                }
+                try {
+                    stopped.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                snapshot = null;
+            }
+        }
+    }
+
+    public boolean isAsync() {
+        return worker != null;
+    }
+
+    /**
+     * @return the last published snapshot of the sheet (async mode only, null otherwise).
+     */
+    public SheetSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return true iff there are edits which are not reflected yet by value() (async mode only).
+     */
+    public boolean isRecalculating() {
+        synchronized (edits) {
+            return pending > 0;
+        }
+    }
+
+    /**
+     * Waits until all the edits submitted so far are applied and published (returns at once if not async).
+     * @throws RuntimeException the first exception thrown by applying a queued edit since the previous call.
+     */
+    public void awaitRecalculation() {
+        synchronized (edits) {
+            idle();
+            RuntimeException thrown = failure;
+            failure = null;
+            if (thrown != null) {
+                throw thrown;
+            }
+        }
+    }
+
+    // waits until the worker has applied every queued edit (even if interrupted, as the callers then read the store)
+    private void idle() {
+        boolean interrupted = false;
+        synchronized (edits) {
+            while (pending > 0) {
+                try {
+                    edits.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(Edit edit) {
+        synchronized (edits) {
+            edits.add(edit);
+            pending++;
+            edits.notifyAll();
+        }
+    }
+
+    // submits edits so that the worker applies them together
+    private void submitAll(List<Edit> batch) {
+        if (batch.isEmpty()) return;
+        synchronized (edits) {
+            edits.addAll(batch);
+            pending += batch.size();
+            edits.notifyAll();
+        }
+    }
+
+    // the loop of the worker thread
+    private void work() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            Edit[] batch;
+            synchronized (edits) {
+                while (edits.isEmpty() && worker == self) {
+                    try {
+                        edits.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (worker != self) return;
+                batch = edits.toArray(new Edit[0]);
+                edits.clear();
+            }
+            RuntimeException thrown = null;
+            try {
+                apply(batch);
+            } catch (RuntimeException e) {
+                thrown = e; // the worker keeps running
+            } finally {
+                synchronized (edits) {
+                    if (failure == null) {
+                        failure = thrown;
+                    }
+                    pending -= batch.length;
+                    edits.notifyAll();
+                }
+            }
+        }
+    }
+
+    // applies a batch of queued edits (in order), recalculates once and publishes the result; an edit which fails
+    // is skipped, and the first such exception is thrown once the others are published
+    private void apply(Edit[] batch) {
+        boolean[] changed = new boolean[width()];
+        int[] roots = new int[batch.length];
+        int k = 0;
+        RuntimeException thrown = null;
+        for (Edit e : batch) {
+            try {
+                roots[k] = edit(e.x, e.y, e.data);
+            } catch (RuntimeException ex) {
+                if (thrown == null) {
+                    thrown = ex;
+                }
+                continue;
+            }
+            k++;
+            changed[e.x] = true;
+        }
+        int[] cells = work;
+        int n = update(roots, k, cells);
+        for (int i = 0; i < n; i++) {
+            changed[xOf(cells[i])] = true;
+        }
+        releaseSlots();
+        snapshot = SheetSnapshot.of(snapshot, store, changed);
+        report();
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
+    private static final class Edit {
+        final int x, y;
+        final String data;
+
+        Edit(int x, int y, String data) {
+            this.x = x;
+            this.y = y;
+            this.data = data;
+        }
+    }
 }
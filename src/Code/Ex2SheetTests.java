@@ -4,8 +4,20 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
 
 /**
  * JUnit tests for Ex2Sheet and SCell classes.
@@ -89,4 +101,997 @@ public class Ex2SheetTests {
         sheet.set(1, 0, "=A0+A1+A2");
         assertEquals("65.0", sheet.value(1, 0));
     }
+
+    @Test
+    void testDependentsRecalculatedOnEdit() {
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.set(0, 2, "=A1+1");
+        sheet.set(1, 0, "=A0");
+        assertEquals("7.0", sheet.value(0, 2));
+
+        sheet.set(0, 0, "4");
+        assertEquals("12.0", sheet.value(0, 1));
+        assertEquals("13.0", sheet.value(0, 2));
+        assertEquals("4.0", sheet.value(1, 0));
+
+        sheet.set(0, 1, "=A0");
+        assertEquals("5.0", sheet.value(0, 2));
+    }
+
+    @Test
+    void testDeepFanInChainIsEvaluatedOnce() {
+        Ex2Sheet tall = new Ex2Sheet(1, 60);
+        tall.set(0, 0, "1");
+        for (int y = 1; y < 60; y++) {
+            tall.set(0, y, "=A" + (y - 1) + "+A" + (y - 1)); // 2^59 recursive evaluations without caching
+        }
+        assertEquals(String.valueOf(Math.pow(2, 59)), tall.value(0, 59));
+        tall.eval();
+        assertEquals(String.valueOf(Math.pow(2, 59)), tall.value(0, 59));
+    }
+
+    @Test
+    void testParallelRecalculationMatchesSequential() {
+        Ex2Sheet serial = new Ex2Sheet(8, 200);
+        Ex2Sheet parallel = new Ex2Sheet(8, 200);
+        parallel.setParallel(true);
+        for (Ex2Sheet s : new Ex2Sheet[]{serial, parallel}) {
+            for (int y = 0; y < 200; y++) {
+                s.set(0, y, "" + y);
+                s.set(1, y, "=A" + y + "*2");
+                s.set(2, y, y == 0 ? "=B0" : "=C" + (y - 1) + "+B" + y);
+            }
+            s.set(3, 0, "=D1");
+            s.set(3, 1, "=D0");
+            s.set(0, 0, "7");
+            s.eval();
+        }
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 200; y++) {
+                assertEquals(serial.value(x, y), parallel.value(x, y));
+            }
+        }
+        assertEquals("ERR_CYCLE!", parallel.value(3, 1));
+    }
+
+    @Test
+    void testParallelRecalculationEvaluatesEachCellOnce() {
+        int n = 20000; // cells 0..n-1 have no precedents, cell n+i depends on cells i and (i+1)%n
+        DependencyGraph graph = new DependencyGraph(2 * n);
+        int[] cells = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            graph.setPrecedents(n + i, new int[]{i, (i + 1) % n});
+            cells[i] = i;
+            cells[n + i] = n + i;
+        }
+        AtomicIntegerArray evaluations = new AtomicIntegerArray(2 * n);
+        AtomicInteger early = new AtomicInteger(); // cells evaluated before one of their precedents
+        ParallelRecalc recalc = new ParallelRecalc(graph, cells, 2 * n, c -> {
+            for (int p : graph.precedents(c)) {
+                if (evaluations.get(p) == 0) early.incrementAndGet();
+            }
+            evaluations.incrementAndGet(c);
+        });
+        ForkJoinPool workers = new ForkJoinPool(4); // more workers than cores, so tasks run while the first ones are forked
+        try {
+            for (ForkJoinPool pool : new ForkJoinPool[]{ForkJoinPool.commonPool(), workers}) {
+                for (int c = 0; c < 2 * n; c++) {
+                    evaluations.set(c, 0);
+                }
+                assertEquals(0, recalc.run(pool, new int[2 * n]));
+                for (int c = 0; c < 2 * n; c++) {
+                    assertEquals(1, evaluations.get(c));
+                }
+                assertEquals(0, early.get());
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    void testCompiledTierMatchesInterpreter() {
+        Ex2Sheet interpreted = new Ex2Sheet(3, 3);
+        Ex2Sheet compiled = new Ex2Sheet(3, 3);
+        interpreted.setCompileThreshold(0);
+        compiled.setCompileThreshold(2);
+        String[] forms = {"=A0*1.4-A1/3", "=-A0^2+(A1%7)*2", "=A0/A1", "=2^-A1+A0", "=2A0"};
+        for (Ex2Sheet s : new Ex2Sheet[]{interpreted, compiled}) {
+            for (int i = 0; i < forms.length && i < 3; i++) {
+                s.set(1, i, forms[i]);
+            }
+            s.set(2, 0, forms[3]);
+            s.set(2, 1, forms[4]);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (Ex2Sheet s : new Ex2Sheet[]{interpreted, compiled}) {
+                s.set(0, 0, "" + (round - 3) * 1.7);
+                s.set(0, 1, "" + (round % 4));
+            }
+            for (int x = 1; x < 3; x++) {
+                for (int y = 0; y < 3; y++) {
+                    assertEquals(interpreted.value(x, y), compiled.value(x, y));
+                }
+            }
+        }
+        assertTrue(compiled.get(1, 0).getPlan().isCompiled());
+        assertFalse(interpreted.get(1, 0).getPlan().isCompiled());
+        assertFalse(compiled.get(2, 1).getPlan().isCompiled()); // "2A0" names no cell, it is an error
+        compiled.set(0, 1, "0");
+        assertEquals("ERR_FORM!", compiled.value(1, 2)); // division by zero in the compiled tier
+    }
+
+    @Test
+    void testValueKinds() {
+        sheet.set(0, 0, "3");
+        sheet.set(0, 1, "hello");
+        sheet.set(0, 2, "=A0/0");
+        sheet.set(1, 0, "=B1");
+        sheet.set(1, 1, "=B0");
+        sheet.set(1, 2, "=A0*2");
+        assertEquals(CellValue.NUMBER, sheet.kindAt(0, 0));
+        assertEquals(CellValue.TEXT, sheet.kindAt(0, 1));
+        assertEquals(CellValue.EMPTY, sheet.kindAt(5, 5));
+        assertEquals(CellValue.ERR_FORM, sheet.kindAt(0, 2));
+        assertEquals(CellValue.ERR_CYCLE, sheet.kindAt(1, 0));
+        assertEquals(CellValue.NUMBER, sheet.kindAt(1, 2));
+        assertEquals(6.0, sheet.valueAt(1, 2));
+        assertEquals("ERR_FORM!", sheet.value(0, 2));
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, sheet.get(0, 2).getType());
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get(1, 1).getType());
+        sheet.set(1, 1, "=A0");
+        assertEquals(CellValue.NUMBER, sheet.kindAt(1, 0));
+        assertEquals("3.0", sheet.value(1, 0));
+    }
+
+    @Test
+    void testLazyEvaluationComputesOnlyRequestedCells() {
+        Ex2Sheet lazy = new Ex2Sheet(4, 50);
+        lazy.setLazy(true);
+        lazy.set(0, 0, "1");
+        for (int y = 1; y < 50; y++) {
+            lazy.set(0, y, "=A" + (y - 1) + "+1");
+            lazy.set(1, y, "=A" + y + "*2");
+        }
+        lazy.set(2, 0, "=C1");
+        lazy.set(2, 1, "=C0");
+        assertEquals(CellValue.EMPTY, lazy.kindAt(0, 49)); // nothing computed yet
+        assertEquals("20.0", lazy.value(1, 9));
+        assertEquals(CellValue.NUMBER, lazy.kindAt(0, 9));
+        assertEquals(CellValue.EMPTY, lazy.kindAt(0, 10)); // not a precedent of B9
+        assertEquals(CellValue.EMPTY, lazy.kindAt(1, 8));
+        assertEquals("ERR_CYCLE!", lazy.eval(2, 1));
+
+        lazy.set(0, 0, "10");
+        assertEquals(20.0, lazy.valueAt(1, 9)); // out of date until requested
+        assertEquals("38.0", lazy.value(1, 9));
+        lazy.setLazy(false);
+        assertEquals(CellValue.NUMBER, lazy.kindAt(1, 49));
+        assertEquals("118.0", lazy.value(1, 49));
+        lazy.set(0, 0, "0");
+        assertEquals(0.0, lazy.valueAt(0, 0));
+    }
+
+    @Test
+    void testAsyncRecalculationPublishesSnapshots() {
+        Ex2Sheet async = new Ex2Sheet(3, 400);
+        async.setAsync(true);
+        async.set(0, 0, "1");
+        for (int y = 1; y < 400; y++) {
+            async.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        async.set(1, 0, "=B1");
+        async.set(1, 1, "=B0");
+        async.awaitRecalculation();
+        assertFalse(async.isRecalculating());
+        assertEquals("400.0", async.value(0, 399));
+        assertEquals("ERR_CYCLE!", async.value(1, 1));
+
+        for (int round = 2; round < 20; round++) {
+            async.set(0, 0, "" + round);
+            SheetSnapshot published = async.snapshot();
+            String last = published.value(0, 399);
+            String first = published.value(0, 0);
+            // a snapshot is always consistent: the chain end matches the chain start of the same snapshot
+            assertEquals(Double.parseDouble(first) + 399, Double.parseDouble(last));
+        }
+        assertEquals("418.0", async.eval(0, 399)); // waits for the queued edits
+        async.setAsync(false);
+        async.set(0, 0, "0");
+        assertEquals("399.0", async.value(0, 399));
+    }
+
+    @Test
+    void testAsyncWorkerSurvivesFailingEdits() {
+        Ex2Sheet async = new Ex2Sheet(3, 3);
+        async.setAsync(true);
+        async.set(0, 0, "2");
+        async.set(1, 0, null);
+        async.set(1, 1, "=A0*3");
+        assertThrows(NullPointerException.class, async::awaitRecalculation);
+        async.awaitRecalculation(); // thrown once
+        assertEquals("6.0", async.value(1, 1)); // the other edits were applied
+        async.set(0, 0, "5");
+        async.set(2, 0, "=C1");
+        async.set(2, 1, "=C0");
+        assertEquals("15.0", async.eval(1, 1)); // the worker is still running
+        SheetSnapshot published = async.snapshot();
+        assertEquals(Ex2Utils.NUMBER, published.typeAt(0, 0));
+        assertEquals(Ex2Utils.FORM, published.typeAt(1, 1));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, published.typeAt(2, 1));
+        assertEquals(Ex2Utils.TEXT, published.typeAt(0, 2));
+        async.setAsync(false);
+    }
+
+    @Test
+    void testAsyncReadsAreConsistent() {
+        Ex2Sheet async = new Ex2Sheet(3, 3);
+        async.setAsync(true);
+        async.set(0, 0, "5");
+        async.set(1, 0, "=A0*2");
+        assertEquals("=A0*2", async.get(1, 0).getData()); // get waits for the queued edits
+        assertEquals(10.0, async.valueAt(1, 0)); // from the snapshot published meanwhile
+        assertEquals(CellValue.NUMBER, async.kindAt(1, 0));
+        Thread.currentThread().interrupt();
+        async.set(0, 0, "7");
+        assertEquals("7", async.get(0, 0).getData()); // still waits when interrupted
+        assertTrue(Thread.interrupted());
+        assertEquals(14.0, async.valueAt(1, 0));
+        async.get(0, 0).setData("1");
+        async.awaitRecalculation();
+        assertEquals("2.0", async.value(1, 0));
+        async.setAsync(false);
+    }
+
+    @Test
+    void testSparseSnapshotsKeepOnlyCellsWithSlots() {
+        Ex2Sheet async = new Ex2Sheet(new SparseCellStore(1_000, 1_000_000)); // a dense snapshot would take over 10 GB
+        async.setAsync(true);
+        async.set(3, 999_999, "4");
+        async.set(3, 5, "=D999999*2");
+        async.set(7, 0, "hello");
+        async.awaitRecalculation();
+        SheetSnapshot published = async.snapshot();
+        assertEquals("8.0", published.value(3, 5));
+        assertEquals(4.0, published.valueAt(3, 999_999));
+        assertEquals("hello", published.value(7, 0));
+        assertEquals("", published.value(3, 6));
+        assertEquals(CellValue.EMPTY, published.kindAt(500, 500_000));
+        assertEquals(Ex2Utils.TEXT, published.typeAt(500, 500_000));
+
+        async.set(3, 5, "");
+        async.set(3, 999_999, "5");
+        async.awaitRecalculation();
+        assertEquals("", async.snapshot().value(3, 5));
+        assertEquals("5.0", async.snapshot().value(3, 999_999));
+        assertEquals("hello", async.snapshot().value(7, 0));
+        async.setAsync(false);
+    }
+
+    @Test
+    void testCycleMembersAreReported() {
+        sheet.set(0, 0, "=A1+1");
+        sheet.set(0, 1, "=A2+1");
+        sheet.set(0, 2, "=A0+1");
+        sheet.set(1, 0, "=A1*2"); // depends on the cycle, not on it
+        sheet.set(2, 2, "=C2");
+        assertEquals(3, sheet.cycle(0, 1).size());
+        assertTrue(sheet.cycle(1, 0).isEmpty());
+        assertEquals(1, sheet.cycle(2, 2).size());
+        assertEquals(2, sheet.cycles().size());
+        assertEquals("ERR_CYCLE!", sheet.value(1, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get(0, 2).getType());
+
+        sheet.set(0, 1, "5"); // breaks the first cycle
+        assertTrue(sheet.cycle(0, 0).isEmpty());
+        assertEquals(1, sheet.cycles().size());
+        assertEquals("6.0", sheet.value(0, 0));
+        assertEquals("7.0", sheet.value(0, 2));
+        assertEquals("10.0", sheet.value(1, 0));
+        sheet.set(2, 2, "");
+        assertTrue(sheet.cycles().isEmpty());
+    }
+
+    @Test
+    void testVeryLongChainIsStackSafe() {
+        int rows = 100000;
+        Ex2Sheet column = new Ex2Sheet(2, rows);
+        column.setLazy(true); // builds the chain without recalculating its tail on every edit
+        column.set(0, 0, "1");
+        for (int y = 1; y < rows; y++) {
+            column.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        column.setLazy(false);
+        assertEquals(String.valueOf((double) rows), column.value(0, rows - 1));
+        column.set(0, 0, "=B0");
+        column.set(1, 0, "=A" + (rows - 1));
+        assertEquals("ERR_CYCLE!", column.value(0, rows / 2));
+        assertEquals(rows + 1, column.cycle(1, 0).size());
+
+        column.set(1, 0, "2");
+        int[][] depths = column.depth();
+        assertEquals(0, depths[1][0]);
+        assertEquals(rows, depths[0][rows - 1]);
+        assertEquals(String.valueOf(rows + 1.0), column.value(0, rows - 1));
+    }
+
+    @Test
+    void testVeryLongFormulasAreStackSafe() {
+        String ones = "+1".repeat(19_999);
+        sheet.set(0, 0, "=1" + ones);
+        assertEquals("20000.0", sheet.value(0, 0));
+        sheet.set(0, 1, "=" + "(".repeat(20_000) + "A0" + ")".repeat(20_000) + "^1".repeat(20_000));
+        assertEquals("20000.0", sheet.value(0, 1));
+        sheet.set(0, 2, "=" + "-".repeat(20_000) + "A1");
+        assertEquals("20000.0", sheet.value(0, 2));
+
+        Ex2Sheet column = new Ex2Sheet(2, 100);
+        column.setCompileThreshold(1); // too tall to compile: stays interpreted
+        column.set(0, 0, "0");
+        for (int y = 1; y < 100; y++) {
+            column.set(0, y, "=A" + (y - 1) + ones);
+        }
+        column.set(0, 0, "1"); // recomputes the column in one block
+        assertFalse(column.get(0, 99).getPlan().isCompiled());
+        assertEquals(String.valueOf(1 + 99 * 19_999.0), column.value(0, 99));
+    }
+
+    @Test
+    void testRangeAggregates() {
+        for (int y = 0; y < 5; y++) {
+            sheet.set(0, y, "" + (y + 1));
+        }
+        sheet.set(0, 5, "text");
+        sheet.set(1, 0, "=SUM(A0:A9)");
+        sheet.set(1, 1, "=average(A0:A5)");
+        sheet.set(1, 2, "=MIN(A4:A0)*10");
+        sheet.set(1, 3, "=MAX(A0:A9)+COUNT(A0:A9)");
+        sheet.set(1, 4, "=SUM(A0:B4)"); // includes B4 itself
+        sheet.set(1, 5, "=AVERAGE(C0:C9)");
+        sheet.set(1, 6, "=SUM(A0:A99)");
+        assertEquals("15.0", sheet.value(1, 0));
+        assertEquals("3.0", sheet.value(1, 1));
+        assertEquals("10.0", sheet.value(1, 2));
+        assertEquals("10.0", sheet.value(1, 3));
+        assertEquals("ERR_CYCLE!", sheet.value(1, 4));
+        assertEquals("ERR_FORM!", sheet.value(1, 5)); // no numbers to average
+        assertEquals("ERR_FORM!", sheet.value(1, 6)); // outside of the sheet
+
+        sheet.set(0, 2, "=A0/0");
+        assertEquals("ERR_FORM!", sheet.value(1, 0));
+        sheet.set(0, 2, "-30");
+        assertEquals("-18.0", sheet.value(1, 0));
+        assertEquals("-300.0", sheet.value(1, 2));
+        assertEquals("10.0", sheet.value(1, 3));
+
+        sheet.setCompileThreshold(1);
+        sheet.set(2, 0, "=SUM(A0:A2)*2+A3");
+        sheet.set(0, 0, "7");
+        assertTrue(sheet.get(2, 0).getPlan().isCompiled());
+        assertEquals("-38.0", sheet.value(2, 0));
+    }
+
+    @Test
+    void testBatchEditsRecalculateOnce() {
+        Ex2Sheet big = new Ex2Sheet(3, 1000);
+        big.setCompileThreshold(0);
+        big.beginBatch();
+        big.set(0, 0, "1");
+        for (int y = 1; y < 1000; y++) {
+            big.set(0, y, "=A" + (y - 1) + "+1");
+            big.set(1, y, "=A" + y + "*B" + (y - 1));
+        }
+        big.set(1, 0, "1");
+        assertTrue(big.isInBatch());
+        assertEquals("", big.value(0, 999)); // not recalculated before commit
+        big.commit();
+        assertFalse(big.isInBatch());
+        assertEquals("1000.0", big.value(0, 999));
+        assertEquals("24.0", big.value(1, 3));
+
+        Map<Index2D, String> edits = new HashMap<>();
+        edits.put(new CellEntry(0, 0), "2");
+        edits.put(new CellEntry(2, 0), "=A0+C1");
+        edits.put(new CellEntry(2, 1), "=C0");
+        big.setAll(edits);
+        assertEquals("1001.0", big.value(0, 999));
+        assertEquals("ERR_CYCLE!", big.value(2, 1));
+        assertThrows(IllegalStateException.class, big::commit);
+
+        big.setAsync(true);
+        big.beginBatch();
+        big.set(2, 1, "5");
+        assertThrows(IllegalStateException.class, () -> big.setAsync(false)); // would lose the batched edits
+        assertThrows(IllegalStateException.class, () -> big.setLazy(true));
+        big.setAsync(true); // no change
+        big.set(0, 0, "0");
+        big.commit();
+        big.awaitRecalculation();
+        assertEquals("5.0", big.value(2, 0));
+        assertEquals("999.0", big.value(0, 999));
+        big.setAsync(false);
+    }
+
+    @Test
+    void testIterativeCycles() {
+        sheet.set(0, 0, "100");
+        sheet.set(1, 0, "=A0+B1*0.5"); // B0 = 100 + B0/4, converges to 133.33..
+        sheet.set(1, 1, "=B0*0.5");
+        sheet.set(2, 0, "=B0+1");
+        assertEquals("ERR_CYCLE!", sheet.value(2, 0));
+
+        sheet.setIterative(true); // computes the existing cycle
+        assertEquals(400.0 / 3, sheet.valueAt(1, 0), Ex2Utils.EPS1);
+        assertEquals(400.0 / 3 + 1, sheet.valueAt(2, 0), Ex2Utils.EPS1);
+        assertEquals(Ex2Utils.FORM, sheet.get(1, 1).getType());
+        assertEquals(2, sheet.cycle(1, 1).size());
+
+        sheet.set(0, 0, "10");
+        assertEquals(40.0 / 3, sheet.valueAt(1, 0), Ex2Utils.EPS1);
+
+        sheet.setMaxIterations(5);
+        sheet.set(3, 0, "=D0+1"); // diverges: stops after 5 passes
+        assertEquals("5.0", sheet.value(3, 0));
+        sheet.set(3, 1, "=D1+D2"); // an error on the cycle
+        sheet.set(3, 2, "=D1*text");
+        assertEquals("ERR_FORM!", sheet.value(3, 1));
+
+        sheet.setMaxIterations(50);
+        assertEquals("55.0", sheet.value(3, 0)); // 50 more passes, from the last values
+
+        sheet.setIterative(false);
+        assertEquals("ERR_CYCLE!", sheet.value(1, 0));
+        assertEquals("ERR_CYCLE!", sheet.value(2, 0));
+        assertEquals("ERR_CYCLE!", sheet.value(3, 0));
+        sheet.set(0, 0, "1");
+        assertEquals("ERR_CYCLE!", sheet.value(1, 0));
+    }
+
+    @Test
+    void testChangedCellsReport() throws IOException {
+        sheet.changedCells();
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*2");
+        sheet.set(0, 2, "=A1-A1"); // stays 0.0 after the next edit
+        sheet.set(1, 0, "hello");
+        assertEquals(4, sheet.changedCells().length);
+        assertEquals(0, sheet.changedCells().length);
+
+        sheet.set(0, 0, "3");
+        Set<Long> changed = new HashSet<>();
+        for (long c : sheet.changedCells()) {
+            changed.add(c);
+        }
+        assertEquals(Set.of(Ex2Sheet.pack(0, 0), Ex2Sheet.pack(0, 1)), changed);
+
+        sheet.set(1, 0, "world");
+        sheet.set(0, 0, "3.0"); // same number
+        long[] last = sheet.changedCells();
+        assertEquals(1, last.length);
+        assertEquals(1, Ex2Sheet.unpackX(last[0]));
+        assertEquals(0, Ex2Sheet.unpackY(last[0]));
+        sheet.eval();
+        assertEquals(0, sheet.changedCells().length);
+        assertFalse(sheet.changedAll());
+
+        File file = new File("test_changed_sheet.csv");
+        sheet.save(file.getAbsolutePath());
+        Ex2Sheet loaded = new Ex2Sheet(new SparseCellStore(1, 1));
+        loaded.load(file.getAbsolutePath());
+        file.delete();
+        assertTrue(loaded.changedAll());
+        assertEquals(loaded.getStore().slots(), loaded.changedCells().length); // not every cell of the sheet
+        assertFalse(loaded.changedAll());
+        assertEquals(0, loaded.changedCells().length);
+    }
+
+    @Test
+    void testErrorsAreValuesNotExceptions() {
+        sheet.setCompileThreshold(1);
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "1");
+        sheet.set(1, 0, "=A0 A0+3(A0)"); // implicit multiplication
+        sheet.set(1, 1, "=(A0/A1)^0");
+        sheet.set(1, 2, "=A0*A99999999999");
+        sheet.set(1, 3, "=A0+");
+        sheet.set(1, 4, "1e3f");
+        sheet.set(0, 0, "3");
+        assertTrue(sheet.get(1, 0).getPlan().isCompiled());
+        assertTrue(sheet.get(1, 1).getPlan().isCompiled());
+        assertEquals("1.0", sheet.value(1, 1));
+        sheet.set(0, 1, "0"); // a division by zero which ^0 would hide in the compiled tier
+        assertEquals("18.0", sheet.value(1, 0));
+        assertEquals("ERR_FORM!", sheet.value(1, 1));
+        assertEquals("ERR_FORM!", sheet.value(1, 2));
+        assertEquals("ERR_FORM!", sheet.value(1, 3));
+        assertEquals(Ex2Utils.NUMBER, sheet.get(1, 4).getType());
+    }
+
+    @Test
+    void testFilledDownFormulasShareATemplate() {
+        Ex2Sheet s = new Ex2Sheet(3, 50);
+        s.setCompileThreshold(40);
+        for (int y = 0; y < 50; y++) {
+            s.set(0, y, "" + y);
+            s.set(1, y, "=A" + y + "*1.5");
+            s.set(2, y, "=SUM(A" + y + ":B" + y + ")+b" + y);
+        }
+        FormulaTemplate times = s.get(1, 0).getPlan().getTemplate();
+        FormulaTemplate sum = s.get(2, 0).getPlan().getTemplate();
+        for (int y = 0; y < 50; y++) {
+            assertSame(times, s.get(1, y).getPlan().getTemplate());
+            assertSame(sum, s.get(2, y).getPlan().getTemplate());
+            assertEquals(String.valueOf(4.0 * y), s.value(2, y));
+        }
+        assertNotSame(times, sum);
+        assertTrue(times.compiled() != null);
+        for (int y = 0; y < 50; y++) {
+            s.set(0, y, "" + 2 * y);
+        }
+        for (int y = 0; y < 50; y++) {
+            assertEquals(String.valueOf(3.0 * y), s.value(1, y));
+            assertEquals(String.valueOf(8.0 * y), s.value(2, y));
+        }
+        s.set(1, 7, "=A0*1.5"); // the same text, but another shape relative to B7
+        assertNotSame(times, s.get(1, 7).getPlan().getTemplate());
+        assertEquals("0.0", s.value(1, 7));
+
+        for (int y = 1; y < 50; y++) {
+            s.set(1, y, "" + y);
+        }
+        s.set(1, 1, "=A1*1.5");
+        assertSame(times, s.get(1, 1).getPlan().getTemplate()); // B0 still had it
+        s.set(1, 0, "0");
+        s.set(1, 1, "0");
+        s.set(1, 2, "=A2*1.5");
+        assertNotSame(times, s.get(1, 2).getPlan().getTemplate()); // dropped with its last formula
+        assertEquals("6.0", s.value(1, 2));
+    }
+
+    @Test
+    void testFilledDownBlocksMatchCellByCell() {
+        int rows = 300;
+        Ex2Sheet s = new Ex2Sheet(5, rows);
+        Map<Index2D, String> edits = new HashMap<>();
+        for (int y = 0; y < rows; y++) {
+            edits.put(new CellEntry(0, y), y == 7 ? "text" : "" + y);
+            edits.put(new CellEntry(1, y), "=A" + y + "*2-1");
+            edits.put(new CellEntry(2, y), "=B" + y + "/(A" + y + "-5)"); // a division by zero in row 5
+            edits.put(new CellEntry(3, y), "=A" + (y + 1) + "+1"); // outside of the sheet in the last row
+            edits.put(new CellEntry(4, y), "=MAX(A" + y + ":B" + y + ")-SUM(A" + y + ":A" + y + ")");
+        }
+        s.setAll(edits);
+        for (int y = 0; y < rows; y++) {
+            if (y == 7) { // the text in A7
+                assertEquals("ERR_FORM!", s.value(1, y));
+                assertEquals("ERR_FORM!", s.value(2, y));
+                assertEquals("ERR_FORM!", s.value(4, y));
+                continue;
+            }
+            assertEquals(String.valueOf(2.0 * y - 1), s.value(1, y));
+            assertEquals(y == 5 ? "ERR_FORM!" : String.valueOf((2.0 * y - 1) / (y - 5)), s.value(2, y));
+            assertEquals(y == rows - 1 ? "ERR_FORM!" : y == 6 ? "ERR_FORM!" : String.valueOf(y + 2.0), s.value(3, y));
+            assertEquals(String.valueOf(Math.max(y, 2.0 * y - 1) - y), s.value(4, y));
+            assertEquals(Ex2Utils.FORM, s.get(1, y).getType());
+        }
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, s.get(2, 5).getType());
+    }
+
+    static Stream<Arguments> stores() {
+        return Stream.of(
+                Arguments.of("sparse", (BiFunction<Integer, Integer, CellStore>) SparseCellStore::new),
+                Arguments.of("tiled", (BiFunction<Integer, Integer, CellStore>) TiledCellStore::new),
+                Arguments.of("off-heap", (BiFunction<Integer, Integer, CellStore>) OffHeapCellStore::new));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("stores")
+    void testStoreMatchesDense(String name, BiFunction<Integer, Integer, CellStore> store) throws IOException {
+        Ex2Sheet dense = new Ex2Sheet(6, 40);
+        Ex2Sheet other = new Ex2Sheet(store.apply(6, 40));
+        String[] data = {"=A0+1", "3", "hello", "=SUM(A0:A9)*2", "=B2/0", "=C5+D5", "=C5", "", "=E1", "=F3*F3"};
+        for (int i = 0; i < 60; i++) {
+            for (Ex2Sheet s : new Ex2Sheet[]{dense, other}) {
+                s.set(i * 7 % 6, i * 13 % 40, data[i % data.length]);
+            }
+        }
+        File file = new File("test_" + name + "_sheet.csv");
+        other.save(file.getAbsolutePath());
+        Ex2Sheet loaded = new Ex2Sheet(store.apply(1, 1));
+        loaded.load(file.getAbsolutePath());
+        file.delete();
+        for (int x = 0; x < 6; x++) {
+            for (int y = 0; y < 40; y++) {
+                assertEquals(dense.value(x, y), other.value(x, y));
+                assertEquals(dense.value(x, y), loaded.value(x, y));
+                assertEquals(dense.get(x, y).getType(), other.get(x, y).getType());
+                assertEquals(dense.cycle(x, y).size(), other.cycle(x, y).size());
+            }
+        }
+        assertArrayEquals(dense.depth(), other.depth());
+        assertTrue(other.getStore().slots() < 6 * 40);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("stores")
+    void testStoreReusesRemovedCells(String name, BiFunction<Integer, Integer, CellStore> store) {
+        Ex2Sheet dense = new Ex2Sheet(26, 1_000);
+        Ex2Sheet other = new Ex2Sheet(store.apply(26, 1_000));
+        for (Ex2Sheet s : new Ex2Sheet[]{dense, other}) {
+            s.set(0, 0, "0");
+            s.depth();
+            for (int i = 1; i < 1_000; i++) { // a window of 10 cells moving over the sheet
+                s.set(i % 26, i, "=A0+" + i);
+                if (i > 10) {
+                    s.set((i - 10) % 26, i - 10, "");
+                }
+            }
+        }
+        assertEquals(12, other.getStore().slots()); // the window, A0 and a free slot, not every cell ever set
+        assertArrayEquals(dense.depth(), other.depth());
+
+        for (Ex2Sheet s : new Ex2Sheet[]{dense, other}) {
+            for (int y = 100; y < 600; y++) { // past several doublings of the tables by coordinates
+                s.set(y % 26, y, y % 3 == 0 ? "=A0+" + y : String.valueOf(y));
+            }
+            for (int y = 100; y < 600; y++) {
+                s.set(y % 26, y, "");
+            }
+            s.set(2, 2, "=C3"); // C3 is empty and referred to: it has a slot until the formula goes
+            s.set(2, 2, "");
+            for (int y = 599; y >= 100; y -= 2) { // reinserted at the removed coordinates, referring to empty cells
+                s.set(y % 26, y, "=A" + (y - 1) + "+1");
+            }
+        }
+        assertEquals(511, other.getStore().slots()); // as many as the first 500 cells took, whose slots are reused
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 1_000; y++) {
+                assertEquals(dense.value(x, y), other.value(x, y));
+            }
+        }
+        assertArrayEquals(dense.depth(), other.depth());
+    }
+
+    @Test
+    void testSparseStoreGivesSlotsToUsedCellsOnly() {
+        Ex2Sheet huge = new Ex2Sheet(new SparseCellStore(10_000, 1_000_000)); // 10^10 cells, nearly all empty
+        huge.set(9, 999_999, "4");
+        huge.set(0, 0, "=J999999*2");
+        assertEquals("8.0", huge.value(0, 0));
+        assertEquals("", huge.value(5_000, 500_000));
+        assertEquals("", huge.eval(5_000, 500_000)); // gives the cell no slot
+        assertEquals(2, huge.getStore().slots());
+    }
+
+    @Test
+    void testRangesAddNoSlotsPerCoveredCell() {
+        for (boolean parallel : new boolean[]{false, true}) {
+            Ex2Sheet sparse = new Ex2Sheet(new SparseCellStore(5, 100_000));
+            sparse.setParallel(parallel);
+            sparse.set(0, 5, "3");
+            sparse.set(0, 70_000, "4");
+            for (int y = 0; y < 300; y++) {
+                sparse.set(2, y, "=SUM(A0:A99999)+" + y);
+            }
+            sparse.set(3, 0, "=SUM(C0:C99999)");
+            sparse.set(1, 0, "=SUM(A0:C99999)"); // includes B0 itself
+            assertEquals(304, sparse.getStore().slots()); // the covered cells get none
+            assertEquals("7.0", sparse.value(2, 0));
+            assertEquals("46950.0", sparse.value(3, 0));
+            assertEquals("ERR_CYCLE!", sparse.value(1, 0));
+
+            sparse.set(0, 70_000, "10"); // all the C cells, then D0, in one recalculation
+            assertEquals("312.0", sparse.value(2, 299));
+            assertEquals("48750.0", sparse.value(3, 0));
+            int[][] depths = sparse.depth();
+            assertEquals(1, depths[2][0]);
+            assertEquals(2, depths[3][0]);
+            assertEquals(Ex2Utils.ERR_CYCLE_FORM, depths[1][0]);
+
+            sparse.set(0, 9, "=D0*0+1"); // D0 depends on A9 through two ranges
+            assertEquals("ERR_CYCLE!", sparse.value(0, 9));
+            assertEquals("ERR_CYCLE!", sparse.value(3, 0));
+            assertEquals(Ex2Utils.ERR_CYCLE_FORM, sparse.depth()[2][0]);
+            sparse.set(0, 9, "1");
+            assertEquals("14.0", sparse.value(2, 0));
+            assertEquals("49050.0", sparse.value(3, 0));
+            assertEquals(2, sparse.depth()[3][0]);
+            assertEquals(305, sparse.getStore().slots());
+        }
+    }
+
+    @Test
+    void testEmptyAndTextCellsAreShared() {
+        Ex2Sheet s = new Ex2Sheet(3, 4);
+        s.set(0, 0, "hello");
+        s.set(0, 1, "hello");
+        s.set(0, 2, "7");
+        s.set(1, 0, "=SUM(A0:A3)/A2");
+        assertSame(s.getStore().cell(0, 0), s.getStore().cell(0, 1));
+        assertTrue(s.getStore().cell(0, 0).isShared());
+        assertNull(s.getStore().cell(2, 3)); // empty cells are not stored
+        Cell copy = s.get(0, 0); // the shared cell is not changed through a copy
+        copy.setType(Ex2Utils.NUMBER);
+        copy.setOrder(3);
+        assertEquals(Ex2Utils.NUMBER, copy.getType());
+        assertEquals(Ex2Utils.TEXT, s.get(0, 1).getType());
+        assertEquals(0, s.get(0, 1).getOrder());
+        s.get(2, 3).setType(Ex2Utils.NUMBER);
+        assertEquals(Ex2Utils.TEXT, s.get(2, 3).getType());
+        s.setCompileThreshold(1);
+        s.set(1, 1, "5");
+        s.get(1, 1).setData("=A2+1"); // see Ex2Sheet.set
+        assertEquals("8.0", s.value(1, 1));
+        assertEquals(Ex2Utils.FORM, s.get(1, 1).getType());
+        Cell free = new SCell("=A0+1"); // not in a sheet
+        free.setData("4");
+        assertEquals(Ex2Utils.NUMBER, free.getType());
+        assertEquals("hello", s.value(0, 1));
+        assertEquals("", s.value(2, 3));
+
+        s.set(0, 1, "3"); // a shared text cell is replaced, not changed
+        assertEquals("hello", s.value(0, 0));
+        assertFalse(s.get(0, 1).isShared());
+        assertEquals(String.valueOf(10.0 / 7), s.value(1, 0));
+        assertEquals(Ex2Utils.NUMBER, s.get(0, 1).getType());
+        s.set(0, 2, "0");
+        assertEquals("ERR_FORM!", s.value(1, 0));
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, s.get(1, 0).getType());
+        s.set(0, 2, "2");
+        assertEquals("2.5", s.value(1, 0));
+
+        SCell hello = s.getStore().cell(0, 0);
+        s.set(2, 0, "hello");
+        assertSame(hello, s.getStore().cell(2, 0));
+        s.set(0, 0, "bye");
+        s.set(2, 0, "");
+        s.set(2, 1, "hello");
+        assertNotSame(hello, s.getStore().cell(2, 1)); // dropped with the last cell which had it
+        assertEquals("2.5", s.value(1, 0));
+    }
+
+    @Test
+    void testMultiLetterColumns() {
+        assertEquals("A", Ex2Sheet.columnName(0));
+        assertEquals("Z", Ex2Sheet.columnName(25));
+        assertEquals("AA", Ex2Sheet.columnName(26));
+        assertEquals("XFD", Ex2Sheet.columnName(16383));
+        assertArrayEquals(new int[]{16383, 1048576}, Ex2Sheet.parseCoordinates("XFD1048576"));
+        assertArrayEquals(new int[]{27, 3}, Ex2Sheet.parseCoordinates("ab3"));
+        assertArrayEquals(new int[]{-1, -1}, Ex2Sheet.parseCoordinates("A1B"));
+        assertEquals(Integer.MAX_VALUE, Ex2Sheet.parseCoordinates("A99999999999")[1]);
+        assertEquals("AB3", new CellEntry(27, 3).toString());
+
+        Ex2Sheet s = new Ex2Sheet(30, 5);
+        s.set(25, 0, "1");
+        s.set(26, 0, "2");
+        s.set(27, 0, "3");
+        s.set(0, 0, "=AB0*2");
+        s.set(1, 0, "=SUM(Z0:AB0)+AA0");
+        s.set(28, 4, "=A0+B0");
+        assertEquals("6.0", s.value(0, 0));
+        assertEquals("8.0", s.value(1, 0));
+        assertEquals("14.0", s.value(28, 4));
+        assertEquals("=A0+B0", s.get("AC4").getData());
+        assertEquals("3", s.get("ab0").getData());
+        assertNull(s.get("AE0")); // outside of the sheet
+        assertNull(s.get("hello"));
+        s.set(26, 0, "12");
+        assertEquals("28.0", s.value(1, 0)); // AA0 is a dependency of B0 by both its references
+        assertEquals("34.0", s.value(28, 4));
+    }
+
+    @Test
+    void testFormulaLexer() {
+        FormulaLexer lexer = new FormulaLexer("2.5E1*AB3+ SUM( A0 : B9 )-2E(XY");
+        assertEquals(FormulaLexer.NUMBER, lexer.next());
+        assertEquals(25.0, lexer.number());
+        assertEquals(FormulaLexer.OPERATOR, lexer.next());
+        assertEquals(FormulaLexer.NAME, lexer.next());
+        assertEquals(Ex2Sheet.pack(27, 3), lexer.cell());
+        assertEquals('+', lexer.next() == FormulaLexer.OPERATOR ? lexer.op() : 0);
+        assertEquals(FormulaLexer.RANGE, lexer.next());
+        assertEquals(CellRange.SUM, lexer.function());
+        assertEquals(Ex2Sheet.pack(0, 0), lexer.from());
+        assertEquals(Ex2Sheet.pack(1, 9), lexer.to());
+        assertEquals(FormulaLexer.OPERATOR, lexer.next());
+        assertEquals(FormulaLexer.NUMBER, lexer.next()); // "2", the trailing E starts a name
+        assertEquals(FormulaLexer.NAME, lexer.next());
+        assertEquals(Ex2Sheet.NOT_A_CELL, lexer.cell());
+        assertEquals(FormulaLexer.OPEN, lexer.next());
+        assertEquals(FormulaLexer.NAME, lexer.next());
+        assertEquals(FormulaLexer.END, lexer.next());
+
+        Ex2Sheet s = new Ex2Sheet(4, 4);
+        s.set(0, 0, "2");
+        s.set(1, 0, "3");
+        s.set(0, 1, "4");
+        s.set(1, 1, "5");
+        s.set(2, 0, "=A0+B0+A0B0"); // A0B0 reads as A0*B0, both are references of this formula
+        s.set(2, 1, "=A1+B1+A0B0"); // the same shape, but A0 and B0 are not references of this one
+        s.set(2, 2, "=2SUM ( A0:B1 )");
+        s.set(2, 3, "=sum(a0:b1)/count(A0:B1)");
+        assertEquals("11.0", s.value(2, 0));
+        assertEquals(Ex2Utils.ERR_FORM, s.value(2, 1));
+        assertEquals("28.0", s.value(2, 2));
+        assertEquals("3.5", s.value(2, 3));
+    }
+
+    @Test
+    void testDepthIsMaintainedIncrementally() {
+        Ex2Sheet s = new Ex2Sheet(4, 5);
+        s.set(0, 0, "1");
+        s.set(1, 0, "=A0+1");
+        s.set(1, 1, "=B0*2");
+        s.set(2, 0, "=B1+A0");
+        int[][] first = s.depth();
+        assertEquals(0, first[0][0]);
+        assertEquals(1, first[1][0]);
+        assertEquals(2, first[1][1]);
+        assertEquals(3, first[2][0]);
+        assertEquals(3, s.get(2, 0).getOrder());
+
+        s.set(3, 4, "=C0"); // only the new cell's column changes
+        int[][] second = s.depth();
+        assertEquals(4, second[3][4]);
+        assertSame(first[1], second[1]);
+        assertNotSame(first[3], second[3]);
+        assertEquals(0, first[3][4]); // an earlier result is not changed
+
+        s.set(1, 0, "=B1"); // a cycle, and the cells depending on it
+        int[][] third = s.depth();
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, third[1][0]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, third[1][1]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, third[2][0]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, third[3][4]);
+        assertSame(second[0], third[0]);
+
+        s.set(1, 0, "5"); // breaks the cycle
+        int[][] fourth = s.depth();
+        assertEquals(0, fourth[1][0]);
+        assertEquals(1, fourth[1][1]);
+        assertEquals(2, fourth[2][0]);
+        assertEquals(3, fourth[3][4]);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("stores")
+    void testStoreCrossesBlockBoundaries(String name, BiFunction<Integer, Integer, CellStore> store) {
+        int w = 200, h = 200; // 4x4 tiles of 64x64, partly outside of the sheet at its right and bottom edges
+        Ex2Sheet dense = new Ex2Sheet(w, h);
+        Ex2Sheet other = new Ex2Sheet(store.apply(w, h));
+        String tileColumn = Ex2Sheet.columnName(64); // the first column of the second column of tiles
+        for (Ex2Sheet s : new Ex2Sheet[]{dense, other}) {
+            Map<Index2D, String> edits = new HashMap<>();
+            for (int y = 0; y < h; y++) {
+                edits.put(new CellEntry(0, y), y % 50 == 7 ? "text" : String.valueOf(y));
+                edits.put(new CellEntry(1, y), "=A" + y + "*2+1"); // a filled-down block across tiles
+                edits.put(new CellEntry(199, y), "=SUM(A0:B" + y + ")");
+            }
+            s.setAll(edits);
+            s.set(66, 130, "=" + Ex2Sheet.columnName(199) + "199/A1");
+            s.set(63, 63, "=" + tileColumn + "64+1"); // the last cell of a tile, referring to the first of the next
+            s.set(64, 64, "=A63*2");
+            s.set(1, 64, ""); // removed from the block at the first row of a tile, then reinserted
+            s.set(1, 64, "=A64*2+1");
+        }
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                assertEquals(dense.value(x, y), other.value(x, y));
+            }
+        }
+        assertEquals("127.0", other.value(63, 63));
+        assertArrayEquals(dense.depth(), other.depth());
+        assertEquals(Ex2Utils.EMPTY_CELL, other.eval(40, 100));
+    }
+
+    @Test
+    void testTiledStoreAllocatesUsedTilesOnly() {
+        TiledCellStore store = new TiledCellStore(200, 200);
+        Ex2Sheet tiled = new Ex2Sheet(store);
+        for (int y = 0; y < 200; y++) {
+            tiled.set(0, y, String.valueOf(y));
+            tiled.set(199, y, "=A" + y);
+        }
+        tiled.set(66, 130, "=A1");
+        assertEquals(9, store.tiles()); // the columns of tiles of A and GR, and the tile of BO130
+        assertEquals(Ex2Utils.EMPTY_CELL, tiled.eval(40, 100)); // in a tile which was never allocated
+        assertEquals(9, store.tiles());
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("stores")
+    void testStoreCrossesPageBoundaries(String name, BiFunction<Integer, Integer, CellStore> store) {
+        int w = 3, h = 20_000; // pages of 16384 cells: A16383|A16384, B12767|B12768 and C9151|C9152
+        Ex2Sheet dense = new Ex2Sheet(w, h);
+        Ex2Sheet other = new Ex2Sheet(store.apply(w, h));
+        for (Ex2Sheet s : new Ex2Sheet[]{dense, other}) {
+            Map<Index2D, String> edits = new HashMap<>();
+            for (int y = 0; y < h; y++) {
+                edits.put(new CellEntry(0, y), y % 2 == 0 ? String.valueOf(y) : y + ".25");
+            }
+            for (int y = 9_140; y < 9_160; y++) {
+                edits.put(new CellEntry(2, y), "=A" + y + "*2"); // a filled-down block across pages
+            }
+            edits.put(new CellEntry(1, 0), "=SUM(A0:A19999)");
+            edits.put(new CellEntry(1, 12_767), "=A16383+A16384");
+            edits.put(new CellEntry(1, 12_768), "=B12767*2");
+            s.setAll(edits);
+            s.set(0, 16_384, ""); // removed at the first cell of a page, then reinserted
+            s.set(0, 16_384, "=A16383+1");
+        }
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                assertEquals(dense.value(x, y), other.value(x, y));
+            }
+        }
+        assertEquals("65535.0", other.value(1, 12_768));
+        assertEquals("19999.25", other.get(0, 19_999).getData());
+        assertEquals(dense.value(1, 0), other.value(1, 0));
+        assertArrayEquals(dense.depth(), other.depth());
+    }
+
+    @Test
+    void testOffHeapStoreKeepsNumbersWithoutCells() throws IOException {
+        int w = 3, h = 20_000;
+        OffHeapCellStore store = new OffHeapCellStore(w, h);
+        Ex2Sheet offHeap = new Ex2Sheet(store);
+        Map<Index2D, String> edits = new HashMap<>();
+        for (int y = 0; y < h; y++) {
+            edits.put(new CellEntry(0, y), y % 2 == 0 ? String.valueOf(y) : y + ".25");
+        }
+        edits.put(new CellEntry(1, 0), "=SUM(A0:A19999)");
+        edits.put(new CellEntry(1, 1), "1.50");
+        edits.put(new CellEntry(1, 2), "hello");
+        edits.put(new CellEntry(2, 19_999), "=A19999*B1");
+        offHeap.setAll(edits);
+        assertEquals(4, store.heapCells()); // the formulas, the text and "1.50": the 20000 numbers have no cells
+        assertEquals("1.50", offHeap.get(1, 1).getData());
+        assertEquals("19999.25", offHeap.get(0, 19_999).getData());
+        assertEquals("29998.875", offHeap.value(2, 19_999));
+
+        offHeap.set(0, 19_999, "=B1*2"); // a number replaced by a formula
+        offHeap.set(1, 1, "4");
+        assertEquals("8.0", offHeap.value(0, 19_999));
+        assertEquals("32.0", offHeap.value(2, 19_999));
+        assertEquals(4, store.heapCells()); // one more formula, and "4" needs no cell
+        assertEquals(Ex2Utils.NUMBER, store.type(1, 1)); // read without building its cell
+        assertEquals(4.0, store.number(1, 1));
+        assertEquals(19_998.0, store.number(0, 19_998));
+        assertEquals(Ex2Utils.FORM, store.type(0, 19_999));
+        assertEquals(Ex2Utils.TEXT, store.type(1, 2));
+        assertEquals(Ex2Utils.TEXT, store.type(2, 0)); // empty
+
+        File file = new File("test_off_heap_sheet.csv");
+        offHeap.save(file.getAbsolutePath());
+        Ex2Sheet loaded = new Ex2Sheet(new OffHeapCellStore(1, 1));
+        loaded.load(file.getAbsolutePath());
+        file.delete();
+        assertEquals(offHeap.value(1, 0), loaded.value(1, 0));
+        assertEquals("=B1*2", loaded.get(0, 19_999).getData());
+        assertEquals(Ex2Utils.EMPTY_CELL, loaded.eval(2, 0)); // in a page which was never allocated
+    }
+
+    @Test
+    void testCellKeyMapReclaimsRemovedKeys() {
+        CellKeyMap map = new CellKeyMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(Ex2Sheet.pack(i % 10, i / 10), i); // past several doublings, with colliding probe sequences
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals(i, map.remove(Ex2Sheet.pack(i % 10, i / 10)));
+        }
+        assertEquals(-1, map.remove(Ex2Sheet.pack(0, 0)));
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, map.get(Ex2Sheet.pack(i % 10, i / 10))); // found past the removed keys
+        }
+        for (int round = 0; round < 100; round++) { // no tombstones pile up
+            map.put(Ex2Sheet.pack(20, round), round);
+            assertEquals(round, map.remove(Ex2Sheet.pack(20, round)));
+        }
+        assertEquals(500, map.size());
+        assertEquals(999, map.get(Ex2Sheet.pack(9, 99)));
+    }
 }
@@ -0,0 +1,116 @@
+package Code;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The compiled tier of formula evaluation: turns a FormulaNode tree into a tree of method handles,
+ * which the JVM compiles into straight-line code.
+ * The leaves for cell references are supplied by the caller (and read the sheet storage directly). They all take
+ * the same arguments (e.g., the plan and the sheet), which are passed once to the whole tree.
+ * The operators behave exactly as the exp4j ones, except that nothing throws: a division by zero gives NaN,
+ * and NaN always propagates to the result (Math.pow(NaN, 0) would be 1), so a result which is not NaN is exact.
+ * A handle calls the handles of its operands, so running it takes stack in proportion to the height of the tree:
+ * taller trees (see MAX_HEIGHT) are left to the interpreter.
+ */
+public class FormulaCompiler {
+    /**
+     * The height of the tallest syntax tree which is compiled (e.g., a chain of 200 additions is not).
+     */
+    public static final int MAX_HEIGHT = 128;
+
+    private static final MethodHandle ADD, SUB, MUL, DIV, MOD, POW, NEG;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+            ADD = lookup.findStatic(FormulaCompiler.class, "add", binary);
+            SUB = lookup.findStatic(FormulaCompiler.class, "sub", binary);
+            MUL = lookup.findStatic(FormulaCompiler.class, "mul", binary);
+            DIV = lookup.findStatic(FormulaCompiler.class, "div", binary);
+            MOD = lookup.findStatic(FormulaCompiler.class, "mod", binary);
+            POW = lookup.findStatic(FormulaCompiler.class, "pow", binary);
+            NEG = lookup.findStatic(FormulaCompiler.class, "neg", MethodType.methodType(double.class, double.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @param program the syntax tree of a formula, in postfix order (see FormulaTemplate.program).
+     * @param refs one handle of the given type per reference index, returning the current value of that cell.
+     * @param type the type of the compiled formula, (arguments of the leaves)double.
+     * @return a handle of the given type computing the formula.
+     */
+    public static MethodHandle compile(FormulaNode[] program, MethodHandle[] refs, MethodType type) {
+        int n = type.parameterCount();
+        int[] reorder = new int[2 * n];
+        for (int i = 0; i < 2 * n; i++) {
+            reorder[i] = i % n;
+        }
+        MethodHandle[] stack = new MethodHandle[program.length];
+        int depth = 0;
+        for (FormulaNode node : program) {
+            switch (node.op) {
+                case FormulaNode.NUMBER:
+                    stack[depth++] = MethodHandles.dropArguments(MethodHandles.constant(double.class, node.number), 0, type.parameterList());
+                    break;
+                case FormulaNode.REF:
+                    stack[depth++] = refs[node.ref];
+                    break;
+                case FormulaNode.NEG:
+                    stack[depth - 1] = MethodHandles.collectArguments(NEG, 0, stack[depth - 1]);
+                    break;
+                default:
+                    MethodHandle op = operator(node.op);
+                    depth--;
+                    op = MethodHandles.collectArguments(op, 0, stack[depth - 1]); // (args, b)
+                    op = MethodHandles.collectArguments(op, n, stack[depth]); // (args, args)
+                    stack[depth - 1] = MethodHandles.permuteArguments(op, type, reorder); // both operands get the same arguments
+            }
+        }
+        return stack[0];
+    }
+
+    private static MethodHandle operator(char op) {
+        switch (op) {
+            case '+': return ADD;
+            case '-': return SUB;
+            case '*': return MUL;
+            case '/': return DIV;
+            case '%': return MOD;
+            case '^': return POW;
+            default: throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double sub(double a, double b) {
+        return a - b;
+    }
+
+    private static double mul(double a, double b) {
+        return a * b;
+    }
+
+    private static double div(double a, double b) {
+        return b == 0d ? Double.NaN : a / b;
+    }
+
+    private static double mod(double a, double b) {
+        return b == 0d ? Double.NaN : a % b;
+    }
+
+    private static double pow(double a, double b) {
+        return a != a ? a : Math.pow(a, b);
+    }
+
+    private static double neg(double a) {
+        return -a;
+    }
+}
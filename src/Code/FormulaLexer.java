@@ -0,0 +1,273 @@
+package Code;
+
+/**
+ * The tokenizer of (upper-case) formulas, shared by FormulaTemplate, which extracts the references and ranges of a
+ * formula, and by FormulaParser. It walks the characters of the formula once, left to right, and keeps only the
+ * current token: its type, its span in the formula and its value, so tokenizing allocates no strings.
+ *
+ * The tokens are:
+ * NUMBER, scanned as exp4j scans numbers: digits, points and an exponent ("1.5", ".5", "7.", "1E-3");
+ * NAME, a run of letters and digits which starts with a letter (its cell, see cell(), if it is a whole cell name);
+ * RANGE, a whole range aggregate, e.g., "SUM(A0:B9)" or "MAX(C3)" (see function(), from() and to());
+ * OPERATOR ('+', '-', '*', '/', '%', '^'), OPEN, CLOSE, COLON, and ERROR for any other character or an invalid number.
+ * Spaces between the tokens are skipped.
+ */
+public class FormulaLexer {
+    public static final int END = 0, NUMBER = 1, NAME = 2, RANGE = 3, OPERATOR = 4, OPEN = 5, CLOSE = 6, COLON = 7, ERROR = 8;
+    private static final double[] POWERS = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22}; // the powers of ten which are exact doubles
+
+    private final String s;
+    private int pos = 0;
+    private int splitEnd = 0; // tokens before this position continue a name split by split()
+
+    // the current token
+    private int type = END, start = 0, end = 0;
+    private double number; // of a NUMBER
+    private long cell, from, to; // of a NAME (the cell), and of a RANGE (its corners)
+    private int function; // of a RANGE, see CellRange
+
+    public FormulaLexer(String formula) {
+        this.s = formula;
+    }
+
+    /**
+     * Moves to the next token.
+     * @return the type of the token.
+     */
+    public int next() {
+        pos = skipSpaces(pos);
+        start = pos;
+        cell = Ex2Sheet.NOT_A_CELL;
+        if (pos == s.length()) {
+            end = pos;
+            return type = END;
+        }
+        char c = s.charAt(pos);
+        if (isDigit(c) || c == '.') {
+            type = scanNumber();
+        } else if (isLetter(c)) {
+            type = scanName();
+        } else {
+            pos++;
+            type = "+-*/%^".indexOf(c) >= 0 ? OPERATOR : c == '(' ? OPEN : c == ')' ? CLOSE : c == ':' ? COLON : ERROR;
+        }
+        end = pos;
+        return type;
+    }
+
+    /**
+     * Splits the current NAME token after its first len characters: the next token starts there.
+     * Used by FormulaParser, which reads a name as the longest known name it starts with (like exp4j).
+     * No token of the rest of the split name is a RANGE or has a cell.
+     */
+    public void split(int len) {
+        splitEnd = end;
+        pos = start + len;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    /**
+     * @return the start of the current token in the formula.
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * @return the end (exclusive) of the current token in the formula.
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * @return the operator of an OPERATOR token.
+     */
+    public char op() {
+        return s.charAt(start);
+    }
+
+    /**
+     * @return the value of a NUMBER token.
+     */
+    public double number() {
+        return number;
+    }
+
+    /**
+     * @return the packed coordinates (see Ex2Sheet.pack) of a NAME token which is a whole cell name (not preceded by
+     * a letter or a digit, e.g., not "A1" in "2A1"), else Ex2Sheet.NOT_A_CELL.
+     */
+    public long cell() {
+        return cell;
+    }
+
+    /**
+     * @return the function of a RANGE token (see CellRange), -1 if its name is not a function.
+     */
+    public int function() {
+        return function;
+    }
+
+    /**
+     * @return the packed coordinates of the first corner of a RANGE token.
+     */
+    public long from() {
+        return from;
+    }
+
+    /**
+     * @return the packed coordinates of the second corner of a RANGE token (the first one for a single cell).
+     */
+    public long to() {
+        return to;
+    }
+
+    // a number as exp4j scans it; a trailing E is not part of it but starts a name (e.g., "2E" is "2*E")
+    private int scanNumber() {
+        pos++;
+        while (pos < s.length()) {
+            char c = s.charAt(pos);
+            boolean afterE = s.charAt(pos - 1) == 'E';
+            if (!(isDigit(c) || c == '.' || c == 'E' || (afterE && (c == '+' || c == '-')))) break;
+            pos++;
+        }
+        if (s.charAt(pos - 1) == 'E') {
+            pos--;
+        }
+        number = decimal(s, start, pos);
+        return number == number ? NUMBER : ERROR;
+    }
+
+    // a run of letters and digits, which is a RANGE if it is a function name followed by a range
+    private int scanName() {
+        boolean letters = true;
+        while (pos < s.length() && isLetterOrDigit(s.charAt(pos))) {
+            letters &= isLetter(s.charAt(pos));
+            pos++;
+        }
+        if (start < splitEnd) {
+            return NAME;
+        }
+        if (letters && range()) {
+            return RANGE;
+        }
+        if (start == 0 || !isLetterOrDigit(s.charAt(start - 1))) {
+            cell = Ex2Sheet.scanCell(s, start, pos);
+        }
+        return NAME;
+    }
+
+    // "(" cell [":" cell] ")" after the function name, with any spaces in between
+    private boolean range() {
+        int i = skipSpaces(pos);
+        if (i == s.length() || s.charAt(i) != '(') return false;
+        int fromEnd = cellEnd(skipSpaces(i + 1));
+        if (fromEnd < 0) return false;
+        long first = Ex2Sheet.scanCell(s, skipSpaces(i + 1), fromEnd), second = first;
+        i = skipSpaces(fromEnd);
+        if (i < s.length() && s.charAt(i) == ':') {
+            int toStart = skipSpaces(i + 1), toEnd = cellEnd(toStart);
+            if (toEnd < 0) return false;
+            second = Ex2Sheet.scanCell(s, toStart, toEnd);
+            i = skipSpaces(toEnd);
+        }
+        if (i == s.length() || s.charAt(i) != ')') return false;
+        function = CellRange.function(s, start, pos);
+        from = first;
+        to = second;
+        pos = i + 1;
+        return true;
+    }
+
+    // the end of the cell name which starts at i, or -1 if there is none
+    private int cellEnd(int i) {
+        int j = i;
+        while (j < s.length() && isLetterOrDigit(s.charAt(j))) j++;
+        return j > i && Ex2Sheet.scanCell(s, i, j) != Ex2Sheet.NOT_A_CELL ? j : -1;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    /**
+     * @return the value of s[from..to) if it is a decimal number (see isDecimal), else NaN.
+     * Numbers with up to 15 significant digits and small exponents are computed exactly without parsing a String.
+     */
+    static double decimal(CharSequence s, int from, int to) {
+        if (!isDecimal(s, from, to)) return Double.NaN;
+        long mantissa = 0;
+        int digits = 0, scale = 0, i = from;
+        for (; i < to && s.charAt(i) != 'E' && s.charAt(i) != 'e'; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                scale = -1;
+            } else {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+                if (scale < 0) scale--;
+            }
+        }
+        int exponent = scale < 0 ? scale + 1 : 0;
+        if (i < to) { // the exponent
+            boolean negative = s.charAt(++i) == '-';
+            if (s.charAt(i) == '+' || s.charAt(i) == '-') i++;
+            int e = 0;
+            for (; i < to && e < 1000; i++) {
+                e = e * 10 + (s.charAt(i) - '0');
+            }
+            exponent += negative ? -e : e;
+        }
+        if (digits <= 15 && exponent >= -22 && exponent <= 22 && i == to) {
+            // both the mantissa and the power of ten are exact, so one (correctly rounded) operation is exact
+            return exponent < 0 ? mantissa / POWERS[-exponent] : mantissa * POWERS[exponent];
+        }
+        return Double.parseDouble(s.subSequence(from, to).toString());
+    }
+
+    /**
+     * @return true iff s[from..to) is a decimal number: digits with at most one point (and at least one digit),
+     * optionally followed by an exponent "E", an optional sign and digits.
+     */
+    static boolean isDecimal(CharSequence s, int from, int to) {
+        int i = from, digits = 0;
+        while (i < to && isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < to && s.charAt(i) == '.') {
+            i++;
+            while (i < to && isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) return false;
+        if (i < to && (s.charAt(i) == 'E' || s.charAt(i) == 'e')) {
+            i++;
+            if (i < to && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+            int exponent = i;
+            while (i < to && isDigit(s.charAt(i))) i++;
+            if (i == exponent) return false;
+        }
+        return i == to;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return isLetter(c) || isDigit(c);
+    }
+}
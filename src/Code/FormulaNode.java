@@ -0,0 +1,39 @@
+package Code;
+
+/**
+ * A node of the syntax tree of a formula (see FormulaParser).
+ * A node is either a number, a reference to a cell (by its index in the FormulaPlan),
+ * a unary minus, or a binary operator ('+', '-', '*', '/', '%', '^') applied to two sub-trees.
+ */
+public class FormulaNode {
+    public static final char NUMBER = 'n', REF = 'r', NEG = '~';
+
+    public final char op;
+    public final double number; // the value of a NUMBER node
+    public final int ref; // the reference index of a REF node
+    public final FormulaNode left, right; // the operands (right is null for NEG)
+
+    private FormulaNode(char op, double number, int ref, FormulaNode left, FormulaNode right) {
+        this.op = op;
+        this.number = number;
+        this.ref = ref;
+        this.left = left;
+        this.right = right;
+    }
+
+    public static FormulaNode number(double v) {
+        return new FormulaNode(NUMBER, v, -1, null, null);
+    }
+
+    public static FormulaNode ref(int i) {
+        return new FormulaNode(REF, 0, i, null, null);
+    }
+
+    public static FormulaNode neg(FormulaNode a) {
+        return new FormulaNode(NEG, 0, -1, a, null);
+    }
+
+    public static FormulaNode binary(char op, FormulaNode a, FormulaNode b) {
+        return new FormulaNode(op, 0, -1, a, b);
+    }
+}
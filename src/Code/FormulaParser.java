@@ -0,0 +1,194 @@
+package Code;
+
+import java.util.Arrays;
+
+/**
+ * An operator precedence parser of (upper-case) formulas into a FormulaNode tree, over the tokens of a FormulaLexer.
+ * It accepts exactly the formulas exp4j (which evaluated the formulas before) accepts, with the same meaning:
+ * "+ -" < "* / %" < unary "+ -" < "^" (right associative, its exponent may carry a unary sign), and
+ * implicit multiplication between adjacent operands (e.g., "2A1", "A1 B1", "(2)(3)" - but not "1 2").
+ * Like exp4j, a name is the longest known variable its letters and digits start with, so "A12" with only
+ * A1 known reads as "A1*2".
+ * The pending operators and operands are kept on explicit stacks (as exp4j does), so a formula may be nested or
+ * chained as deeply as memory allows. The parser never throws: a formula which is not valid gives null.
+ */
+public class FormulaParser {
+    private static final char OPEN = '('; // an open parenthesis on the operator stack
+
+    private final String s;
+    private final FormulaLexer lexer;
+    private final int[] refStarts, refEnds; // the spans of the names of the known variables in the formula
+    private final int ranges; // the number of range aggregates of the formula
+    private int range = 0; // the ranges parsed so far, the i-th one is the variable refStarts.length + i
+    private boolean afterNumber = false; // the previous token was a number (a number may not follow a number)
+    private boolean error = false;
+
+    // the operators (binary, FormulaNode.NEG or OPEN) and the operands which are not applied yet
+    private char[] operators = new char[16];
+    private int operatorCount = 0;
+    private FormulaNode[] operands = new FormulaNode[16];
+    private int operandCount = 0;
+
+    private FormulaParser(String s, int[] refStarts, int[] refEnds, int ranges) {
+        this.s = s;
+        this.lexer = new FormulaLexer(s);
+        this.refStarts = refStarts;
+        this.refEnds = refEnds;
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param formula an upper-case formula without the leading "=".
+     * @param refStarts the start of the name of each cell reference in the formula (e.g., of its first occurrence),
+     *                  a REF node holds the index of its reference.
+     * @param refEnds the end (exclusive) of the name of each cell reference.
+     * @param ranges the number of RANGE tokens of the formula (see FormulaLexer), the i-th range is the
+     *               REF refStarts.length + i.
+     * @return the syntax tree of the formula, or null if it is not valid.
+     */
+    public static FormulaNode parse(String formula, int[] refStarts, int[] refEnds, int ranges) {
+        FormulaParser p = new FormulaParser(formula, refStarts, refEnds, ranges);
+        p.lexer.next();
+        FormulaNode node = p.expression();
+        return p.error || p.lexer.type() != FormulaLexer.END ? null : node;
+    }
+
+    // reads tokens while they continue the formula, alternating between operands (with their prefixes) and operators
+    private FormulaNode expression() {
+        boolean operand = true; // an operand is expected next, else an operator
+        while (!error) {
+            if (operand) {
+                if (isOperator('-', '-')) {
+                    advance();
+                    push(FormulaNode.NEG);
+                } else if (isOperator('+', '+')) {
+                    advance();
+                } else if (lexer.type() == FormulaLexer.OPEN) {
+                    advance();
+                    push(OPEN);
+                } else {
+                    FormulaNode node = primary();
+                    if (error) break;
+                    if (operandCount == operands.length) {
+                        operands = Arrays.copyOf(operands, 2 * operandCount);
+                    }
+                    operands[operandCount++] = node;
+                    operand = false;
+                }
+            } else if (lexer.type() == FormulaLexer.OPERATOR) {
+                char op = lexer.op();
+                advance();
+                reduce(op);
+                push(op);
+                operand = true;
+            } else if (lexer.type() == FormulaLexer.CLOSE) {
+                reduce(OPEN);
+                if (operatorCount == 0) break; // no open parenthesis: the formula ends here (and is not valid)
+                operatorCount--;
+                advance();
+            } else if (startsOperand(lexer.type())) {
+                reduce('*'); // implicit multiplication
+                push('*');
+                operand = true;
+            } else {
+                break;
+            }
+        }
+        if (operand) return fail(); // nothing, or an operator, before the end
+        reduce(OPEN);
+        return operatorCount > 0 ? fail() : operands[0]; // an open parenthesis which is not closed
+    }
+
+    // applies the pending operators which bind tighter than op (and the ones as tight, unless op is the right
+    // associative '^'), up to the innermost open parenthesis; OPEN applies them all
+    private void reduce(char op) {
+        while (operatorCount > 0 && operators[operatorCount - 1] != OPEN) {
+            char top = operators[operatorCount - 1];
+            if (op != OPEN && (precedence(top) < precedence(op) || (top == op && op == '^'))) return;
+            operatorCount--;
+            if (top == FormulaNode.NEG) {
+                operands[operandCount - 1] = FormulaNode.neg(operands[operandCount - 1]);
+            } else {
+                operandCount--;
+                operands[operandCount - 1] = FormulaNode.binary(top, operands[operandCount - 1], operands[operandCount]);
+            }
+        }
+    }
+
+    private void push(char op) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, 2 * operatorCount);
+        }
+        operators[operatorCount++] = op;
+    }
+
+    private static int precedence(char op) {
+        switch (op) {
+            case '+':
+            case '-':
+                return 1;
+            case FormulaNode.NEG:
+                return 3;
+            case '^':
+                return 4;
+            default: // '*', '/' or '%'
+                return 2;
+        }
+    }
+
+    private FormulaNode primary() {
+        switch (lexer.type()) {
+            case FormulaLexer.NUMBER:
+                if (afterNumber) return fail(); // "1 2"
+                double v = lexer.number();
+                advance();
+                afterNumber = true;
+                return FormulaNode.number(v);
+            case FormulaLexer.RANGE:
+                if (lexer.function() < 0 || range == ranges) return fail();
+                advance();
+                return FormulaNode.ref(refStarts.length + range++);
+            case FormulaLexer.NAME:
+                return name();
+            default:
+                return fail();
+        }
+    }
+
+    // a variable: the longest known name the name token starts with (the rest of the token is read next)
+    private FormulaNode name() {
+        int start = lexer.start();
+        for (int len = lexer.end() - start; len > 0; len--) {
+            for (int i = 0; i < refStarts.length; i++) {
+                if (refEnds[i] - refStarts[i] == len && s.regionMatches(start, s, refStarts[i], len)) {
+                    if (len < lexer.end() - start) {
+                        lexer.split(len);
+                    }
+                    advance();
+                    return FormulaNode.ref(i);
+                }
+            }
+        }
+        return fail();
+    }
+
+    private void advance() {
+        afterNumber = false;
+        lexer.next();
+    }
+
+    private boolean isOperator(char a, char b) {
+        return lexer.type() == FormulaLexer.OPERATOR && (lexer.op() == a || lexer.op() == b);
+    }
+
+    // an invalid token is an operand as well (which fails), as an unknown character was to exp4j
+    private static boolean startsOperand(int type) {
+        return type == FormulaLexer.OPEN || type == FormulaLexer.NUMBER || type == FormulaLexer.NAME
+                || type == FormulaLexer.RANGE || type == FormulaLexer.ERROR;
+    }
+
+    private FormulaNode fail() {
+        error = true;
+        return null;
+    }
+}
@@ -0,0 +1,186 @@
+package Code;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+
+/**
+ * The formula of a cell: a FormulaTemplate (its syntax tree and the offsets of its references, shared by all
+ * the cells with a formula of the same relative shape) anchored at the cell, which pre-resolves the coordinates
+ * of each of its (distinct) cell references.
+ * Evaluating a plan only binds the current values of the references (in the EvalContext of the thread, a plan keeps
+ * no scratch state) and runs the tree.
+ *
+ * Plans are executed in two tiers: every template starts in the tree interpreter, and once its cells were evaluated
+ * successfully a given number of times (see Ex2Sheet.setCompileThreshold) it is compiled by FormulaCompiler
+ * into a method handle tree which reads the values of the references of a plan directly from the store of the sheet.
+ *
+ * Evaluation never throws: a division by zero is reported by EvalContext.failed(). The compiled tier turns it into NaN
+ * (see FormulaCompiler), and a NaN result is re-evaluated by the interpreter, which tells the two apart.
+ *
+ * Aggregates over ranges (e.g., "SUM(A0:A99)", see CellRange) are "#:" in the key of the template, and the i-th
+ * range is the REF node size() + i of the tree, bound to the result of querying the range (see SCell.evaluate).
+ */
+public class FormulaPlan {
+    private static final CellRange[] NO_RANGES = {};
+
+    private final FormulaTemplate template;
+    private final int x, y; // the cell of this formula
+    private final CellRange[] ranges; // the ranges of the template, anchored at x,y
+
+    private FormulaPlan(FormulaTemplate template, int x, int y) {
+        this.template = template;
+        this.x = x;
+        this.y = y;
+        this.ranges = template.ranges() == 0 ? NO_RANGES : new CellRange[template.ranges()];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = template.range(i, x, y);
+        }
+    }
+
+    /**
+     * Compiles a formula with absolute references (anchored at 0,0), which shares its template with no other plan.
+     * @param formula the formula, without the leading "=" (e.g., "a1*(3-A2)" or "SUM(A0:A9)/2").
+     * @return the plan of this formula, see isValid() for formulas which can not be parsed.
+     */
+    public static FormulaPlan compile(String formula) {
+        return compile(formula, 0, 0, null);
+    }
+
+    /**
+     * Compiles the formula of the x,y cell.
+     * @param templates the templates interned so far (see FormulaTemplate.of), null to not share the template.
+     * @return the plan of this formula, see isValid() for formulas which can not be parsed.
+     */
+    public static FormulaPlan compile(String formula, int x, int y, Map<String, FormulaTemplate> templates) {
+        return new FormulaPlan(FormulaTemplate.of(formula, x, y, templates), x, y);
+    }
+
+    public FormulaTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return false iff the formula is not a valid expression (it will always evaluate to an error).
+     */
+    public boolean isValid() {
+        return template.program() != null;
+    }
+
+    /**
+     * @return the number of distinct cells referenced by this formula.
+     */
+    public int size() {
+        return template.size();
+    }
+
+    public int refX(int i) {
+        return x + template.refDx(i);
+    }
+
+    public int refY(int i) {
+        return y + template.refDy(i);
+    }
+
+    /**
+     * @return the number of range aggregates in this formula.
+     */
+    public int ranges() {
+        return ranges.length;
+    }
+
+    public CellRange range(int i) {
+        return ranges[i];
+    }
+
+    /**
+     * @return true iff this plan runs in the compiled tier (and does not need its references to be bound).
+     */
+    public boolean isCompiled() {
+        return template.compiled() != null;
+    }
+
+    /**
+     * Runs the formula: the compiled tier if there is one, else the interpreter with the values bound in the context
+     * (the i-th reference at i, the i-th range at size() + i; the ranges are bound for the compiled tier as well).
+     * @param sheet the sheet of this formula, the compiled tier reads the values of this sheet.
+     * @param ctx the context the evaluation of the cell of this formula began in (see EvalContext.begin).
+     * @return the result, meaningless if ctx.failed().
+     */
+    public double evaluate(Ex2Sheet sheet, EvalContext ctx) {
+        MethodHandle compiled = template.compiled();
+        if (compiled != null) {
+            double result;
+            try {
+                result = (double) compiled.invokeExact(ctx, sheet);
+            } catch (Throwable t) {
+                throw new IllegalStateException(t); // the compiled operators do not throw
+            }
+            if (result == result) {
+                return result; // not NaN, so there was no division by zero
+            }
+            for (int i = 0; i < template.size(); i++) {
+                ctx.bind(i, sheet.storedValue(refX(i), refY(i)));
+            }
+            return interpret(ctx);
+        }
+        double result = interpret(ctx);
+        if (!ctx.failed()) {
+            template.evaluated(sheet.getCompileThreshold());
+        }
+        return result;
+    }
+
+    // the interpreter, which runs the postfix program of the template on the stack of the context, with the same
+    // operators as exp4j (but a division by zero fails the context instead of throwing)
+    private double interpret(EvalContext ctx) {
+        double[] stack = ctx.stack(template.stackDepth());
+        int depth = 0;
+        for (FormulaNode node : template.program()) {
+            switch (node.op) {
+                case FormulaNode.NUMBER:
+                    stack[depth++] = node.number;
+                    break;
+                case FormulaNode.REF:
+                    stack[depth++] = ctx.bound(node.ref);
+                    break;
+                case FormulaNode.NEG:
+                    stack[depth - 1] = -stack[depth - 1];
+                    break;
+                default:
+                    double b = stack[--depth], a = stack[depth - 1];
+                    switch (node.op) {
+                        case '+':
+                            stack[depth - 1] = a + b;
+                            break;
+                        case '-':
+                            stack[depth - 1] = a - b;
+                            break;
+                        case '*':
+                            stack[depth - 1] = a * b;
+                            break;
+                        case '^':
+                            stack[depth - 1] = Math.pow(a, b);
+                            break;
+                        default: // '/' or '%'
+                            if (b == 0d) {
+                                ctx.fail();
+                                stack[depth - 1] = Double.NaN;
+                            } else {
+                                stack[depth - 1] = node.op == '/' ? a / b : a % b;
+                            }
+                    }
+            }
+        }
+        return stack[0];
+    }
+
+    // the leaves of the compiled tier (see FormulaTemplate): the value of a cell at an offset from the evaluated cell,
+    // and a value bound in the context (the result of a range query)
+    static double cellValue(EvalContext ctx, Ex2Sheet sheet, int dx, int dy) {
+        return sheet.storedValue(ctx.x() + dx, ctx.y() + dy);
+    }
+
+    static double boundValue(EvalContext ctx, Ex2Sheet sheet, int i) {
+        return ctx.bound(i);
+    }
+}
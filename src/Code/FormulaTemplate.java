@@ -0,0 +1,269 @@
+package Code;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The position independent part of a formula: its syntax tree (as a postfix program, see program), the offsets
+ * of its references and ranges from the cell of the formula, and its compiled tier.
+ * Formulas of the same shape relative to their cells (e.g., "=A1*1.4" in B1, "=A2*1.4" in B2 ...) share one
+ * template, so a filled-down column is parsed once and compiled once. Each cell keeps only its FormulaPlan,
+ * which anchors the template at the cell.
+ *
+ * Templates are interned by their key (see of): the upper-case formula with every reference replaced by its
+ * offsets from the cell, in the manner of R1C1 references. An interned template counts the plans using it, so it
+ * is dropped once no cell has a formula of its shape (see release).
+ */
+public class FormulaTemplate {
+    static final MethodType COMPILED = MethodType.methodType(double.class, EvalContext.class, Ex2Sheet.class);
+    private static final MethodHandle CELL_VALUE, BOUND_VALUE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            CELL_VALUE = lookup.findStatic(FormulaPlan.class, "cellValue",
+                    MethodType.methodType(double.class, EvalContext.class, Ex2Sheet.class, int.class, int.class));
+            BOUND_VALUE = lookup.findStatic(FormulaPlan.class, "boundValue",
+                    MethodType.methodType(double.class, EvalContext.class, Ex2Sheet.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String key;
+    private final FormulaNode[] program; // the nodes of the tree in postfix order, null iff the formula could not be parsed
+    private final int stackDepth; // the most values the program keeps on its stack at once
+    private final int height; // the height of the tree (a single node has height 1)
+    private final int[] refDx, refDy; // the offsets of the (distinct) cell references
+    private final int[] functions; // the function of each range (see CellRange)
+    private final int[] rangeDx0, rangeDy0, rangeDx1, rangeDy1; // the offsets of the corners of each range
+
+    private int evaluations = 0; // successful evaluations in the interpreter, by all the cells of this template
+    private int users = 0; // the plans given this (interned) template by of, and not released since
+    private volatile MethodHandle compiled = null; // the compiled tier, (EvalContext, Ex2Sheet)double
+
+    private FormulaTemplate(String key, FormulaNode tree, int[] refDx, int[] refDy, int[][] ranges) {
+        this.key = key;
+        this.program = tree == null ? null : postfix(tree);
+        int depth = 0, max = 0;
+        int[] heights = new int[program == null ? 0 : program.length]; // of the sub-trees on the stack
+        for (int i = 0; i < heights.length; i++) {
+            FormulaNode node = program[i];
+            if (node.op == FormulaNode.NUMBER || node.op == FormulaNode.REF) {
+                heights[depth++] = 1;
+                max = Math.max(max, depth);
+            } else if (node.op == FormulaNode.NEG) {
+                heights[depth - 1]++;
+            } else {
+                depth--;
+                heights[depth - 1] = Math.max(heights[depth - 1], heights[depth]) + 1;
+            }
+        }
+        this.stackDepth = max;
+        this.height = heights.length == 0 ? 0 : heights[0];
+        this.refDx = refDx;
+        this.refDy = refDy;
+        this.functions = ranges[0];
+        this.rangeDx0 = ranges[1];
+        this.rangeDy0 = ranges[2];
+        this.rangeDx1 = ranges[3];
+        this.rangeDy1 = ranges[4];
+    }
+
+    /**
+     * Returns the template of a formula in the x,y cell.
+     * @param formula the formula, without the leading "=" (e.g., "a1*(3-A2)" or "SUM(A0:A9)/2").
+     * @param templates the templates interned so far (by key), null to get a template which is not shared.
+     * @return the (interned) template of this formula.
+     */
+    public static FormulaTemplate of(String formula, int x, int y, Map<String, FormulaTemplate> templates) {
+        formula = formula.toUpperCase();
+        boolean valid = true;
+        boolean anchored = false; // the meaning of the formula depends on the names of its references, see below
+
+        // the variables are the whole cell names (as exp4j was given them), then the ranges; in the key each
+        // cell name is replaced by "#i", each range by "#:", and "#" itself by "##"
+        List<int[]> refs = new ArrayList<>(); // the span and the cell of the first occurrence of each name
+        List<int[]> ranges = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        FormulaLexer lexer = new FormulaLexer(formula);
+        for (int type = lexer.next(), last = 0; type != FormulaLexer.END; last = lexer.end(), type = lexer.next()) {
+            text.append(formula, last, lexer.start()); // the spaces between the tokens
+            long cell = lexer.cell();
+            if (type == FormulaLexer.RANGE) {
+                if (lexer.function() < 0) {
+                    valid = false; // an unknown function
+                }
+                long from = lexer.from(), to = lexer.to();
+                ranges.add(new int[]{lexer.function(), Ex2Sheet.unpackX(from) - x, Ex2Sheet.unpackY(from) - y,
+                        Ex2Sheet.unpackX(to) - x, Ex2Sheet.unpackY(to) - y});
+                text.append("#:");
+            } else if (cell != Ex2Sheet.NOT_A_CELL) {
+                int start = lexer.start(), len = lexer.end() - start, index = 0;
+                while (index < refs.size()
+                        && !(refs.get(index)[1] - refs.get(index)[0] == len && formula.regionMatches(start, formula, refs.get(index)[0], len))) {
+                    index++;
+                }
+                if (index == refs.size()) {
+                    refs.add(new int[]{start, start + len, Ex2Sheet.unpackX(cell), Ex2Sheet.unpackY(cell)});
+                }
+                text.append('#').append(index);
+            } else {
+                // a name which is not a cell name is read through the names of the references it starts with
+                // (e.g., "A0B0" is "A0*B0" if both are referenced elsewhere), so its template is not shared
+                anchored |= type == FormulaLexer.NAME;
+                for (int i = lexer.start(); i < lexer.end(); i++) {
+                    char c = formula.charAt(i);
+                    text.append(c);
+                    if (c == '#') text.append(c);
+                }
+            }
+        }
+        int[] refStarts = new int[refs.size()], refEnds = new int[refs.size()];
+        int[] refDx = new int[refs.size()], refDy = new int[refs.size()];
+        StringBuilder key = new StringBuilder().append(valid ? "" : "!");
+        if (anchored) {
+            key.append('@').append(x).append(',').append(y).append('@');
+        }
+        key.append(refs.size());
+        for (int i = 0; i < refs.size(); i++) {
+            int[] ref = refs.get(i);
+            refStarts[i] = ref[0];
+            refEnds[i] = ref[1];
+            refDx[i] = ref[2] - x;
+            refDy[i] = ref[3] - y;
+            key.append(',').append(refDx[i]).append(',').append(refDy[i]);
+        }
+        int[][] specs = new int[5][ranges.size()];
+        key.append(';').append(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            for (int j = 0; j < 5; j++) {
+                specs[j][i] = ranges.get(i)[j];
+                key.append(',').append(specs[j][i]);
+            }
+        }
+        key.append(';').append(text);
+
+        String k = key.toString();
+        FormulaTemplate template = templates == null ? null : templates.get(k);
+        if (template == null) {
+            FormulaNode tree = valid ? FormulaParser.parse(formula, refStarts, refEnds, ranges.size()) : null;
+            template = new FormulaTemplate(k, tree, refDx, refDy, specs);
+            if (templates != null) {
+                templates.put(k, template);
+            }
+        }
+        if (templates != null) {
+            template.users++;
+        }
+        return template;
+    }
+
+    /**
+     * Forgets one of the plans this interned template was given to (e.g., a formula which was replaced).
+     * @return true iff no plan uses this template any more, so it should no longer be interned.
+     */
+    boolean release() {
+        return --users == 0;
+    }
+
+    /**
+     * @return the key this template is interned by.
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * @return the nodes of the syntax tree in postfix order (the operands of a node before it, the left one first),
+     * null if the formula could not be parsed. It runs on a stack: a NUMBER or REF node pushes its value, a NEG node
+     * negates the top value, and a binary node replaces the two top values with its result.
+     */
+    public FormulaNode[] program() {
+        return program;
+    }
+
+    /**
+     * @return the most values the program keeps on its stack at once.
+     */
+    public int stackDepth() {
+        return stackDepth;
+    }
+
+    /**
+     * @return the number of distinct cells referenced by this formula.
+     */
+    public int size() {
+        return refDx.length;
+    }
+
+    public int refDx(int i) {
+        return refDx[i];
+    }
+
+    public int refDy(int i) {
+        return refDy[i];
+    }
+
+    /**
+     * @return the number of range aggregates in this formula.
+     */
+    public int ranges() {
+        return functions.length;
+    }
+
+    /**
+     * @return the i-th range of this formula, anchored at the x,y cell.
+     */
+    public CellRange range(int i, int x, int y) {
+        return new CellRange(functions[i], x + rangeDx0[i], y + rangeDy0[i], x + rangeDx1[i], y + rangeDy1[i]);
+    }
+
+    /**
+     * @return the compiled tier of this template, or null if it is still interpreted.
+     */
+    public MethodHandle compiled() {
+        return compiled;
+    }
+
+    /**
+     * Counts a successful evaluation in the interpreter, and compiles this template once the cells sharing it
+     * were evaluated threshold times (a threshold <= 0 never compiles).
+     * Concurrent calls may lose counts or compile twice, which is harmless.
+     */
+    void evaluated(int threshold) {
+        if (threshold > 0 && height <= FormulaCompiler.MAX_HEIGHT && ++evaluations >= threshold && compiled == null) {
+            MethodHandle[] refs = new MethodHandle[refDx.length + functions.length];
+            for (int i = 0; i < refDx.length; i++) {
+                refs[i] = MethodHandles.insertArguments(CELL_VALUE, 2, refDx[i], refDy[i]);
+            }
+            for (int i = 0; i < functions.length; i++) {
+                refs[refDx.length + i] = MethodHandles.insertArguments(BOUND_VALUE, 2, refDx.length + i); // bound by SCell.evaluate
+            }
+            compiled = FormulaCompiler.compile(program, refs, COMPILED);
+        }
+    }
+
+    // the nodes of a tree in postfix order, without recursion: a pre-order walk visiting the right operand
+    // first, reversed
+    private static FormulaNode[] postfix(FormulaNode tree) {
+        List<FormulaNode> order = new ArrayList<>();
+        List<FormulaNode> pending = new ArrayList<>();
+        pending.add(tree);
+        while (!pending.isEmpty()) {
+            FormulaNode node = pending.remove(pending.size() - 1);
+            order.add(node);
+            if (node.left != null) pending.add(node.left);
+            if (node.right != null) pending.add(node.right);
+        }
+        FormulaNode[] program = new FormulaNode[order.size()];
+        for (int i = 0; i < program.length; i++) {
+            program[i] = order.get(program.length - 1 - i);
+        }
+        return program;
+    }
+}
@@ -0,0 +1,104 @@
+package Code;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * The areas of ranges (see CellRange) which cover the rows of one column of a sheet, by id, so the ranges a cell
+ * is in are found without scanning them. It is a segment tree over the rows (laid out as ColumnIndex): an area
+ * is kept by the O(log(rows)) nodes its rows decompose into, so the areas covering a row are the ones kept on
+ * the path from its leaf to the root.
+ * Adding or removing an area takes O(log(rows)), finding the areas covering a row takes O(log(rows)) plus one
+ * step per area found.
+ */
+public class IntervalIndex {
+    private final int n; // number of leaves (rows), leaf y is node n+y
+    private final int[][] ids; // by node: the areas kept there (the first counts[node] entries), null if none
+    private final int[] counts;
+
+    public IntervalIndex(int rows) {
+        n = rows;
+        ids = new int[2 * n][];
+        counts = new int[2 * n];
+    }
+
+    /**
+     * Adds the area id, covering the rows from..to (inclusive).
+     */
+    public void add(int from, int to, int id) {
+        for (int l = from + n, r = to + n + 1; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                put(l++, id);
+            }
+            if ((r & 1) == 1) {
+                put(--r, id);
+            }
+        }
+    }
+
+    /**
+     * Removes the area id, which was added with the same rows.
+     */
+    public void remove(int from, int to, int id) {
+        for (int l = from + n, r = to + n + 1; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                take(l++, id);
+            }
+            if ((r & 1) == 1) {
+                take(--r, id);
+            }
+        }
+    }
+
+    /**
+     * Calls action with every area covering row y. Only reads the index, so it may be called concurrently.
+     */
+    public void forEach(int y, IntConsumer action) {
+        for (int i = y + n; i > 0; i >>= 1) {
+            for (int j = 0; j < counts[i]; j++) {
+                action.accept(ids[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Collects the areas covering row y (each once).
+     * @param out an array with room for every area.
+     * @return the number of collected areas.
+     */
+    public int collect(int y, int[] out) {
+        int k = 0;
+        for (int i = y + n; i > 0; i >>= 1) {
+            for (int j = 0; j < counts[i]; j++) {
+                out[k++] = ids[i][j];
+            }
+        }
+        return k;
+    }
+
+    private void put(int node, int id) {
+        int[] kept = ids[node];
+        int k = counts[node];
+        if (kept == null || k == kept.length) {
+            kept = kept == null ? new int[2] : Arrays.copyOf(kept, 2 * k);
+            ids[node] = kept;
+        }
+        kept[k] = id;
+        counts[node] = k + 1;
+    }
+
+    private void take(int node, int id) {
+        int[] kept = ids[node];
+        int k = counts[node];
+        for (int j = 0; j < k; j++) {
+            if (kept[j] == id) {
+                kept[j] = kept[k - 1];
+                counts[node] = k - 1;
+                if (k == 1) {
+                    ids[node] = null;
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package Code;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A CellStore for very large numeric sheets, which keeps the stored values and kinds of the cells, and the numbers
+ * typed in them, outside of the Java heap (in direct buffers), so they add nothing to the work of the garbage collector.
+ * A number cell whose data is the canonical text of its number (e.g., "12" or "2.5") has no SCell object at all:
+ * cell() rebuilds a (new) one from its number, type() and number() read it as it is. Only formulas, text and other
+ * number texts (e.g., "1.50") keep their cells on the heap, found through a CellKeyMap of their packed coordinates.
+ * Each slot still costs the sheet its dependency graph entry and per-id arrays on the heap (about 60 bytes).
+ *
+ * The cells are kept in pages of 16K cells (by column, as in DenseCellStore), allocated when a cell of the page gets
+ * a slot, and the slots are numbered as they are allocated (see SparseCellStore). A page is freed by the garbage
+ * collector along with the store.
+ */
+public class OffHeapCellStore implements CellStore {
+    private static final int SHIFT = 14, PAGE = 1 << SHIFT, MASK = PAGE - 1;
+    // the content of a cell: none (empty), its SCell in the on-heap table, or a number with a canonical text
+    private static final byte NONE = 0, TABLE = 1, INTEGER = 2, DOUBLE = 3;
+
+    private final int width, height;
+    private final Page[] pages; // by (x * height + y) / PAGE, null until a cell of the page gets a slot
+
+    // by slot: the packed coordinates of its cell (Ex2Sheet.NOT_A_CELL if free, see release), in off-heap pages as well
+    private int size = 0;
+    private LongBuffer[] slotCells = new LongBuffer[1];
+    private int[] freeSlots = new int[16]; // the free slots (the first freeSlotCount entries), reused first
+    private int freeSlotCount = 0;
+
+    // the cells kept on the heap, by an index found through their packed coordinates; the indexes of removed cells
+    // are reused
+    private final CellKeyMap heap = new CellKeyMap();
+    private SCell[] cells = new SCell[16];
+    private int[] free = new int[16];
+    private int freeCount = 0, cellCount = 0;
+
+    private static final class Page {
+        final DoubleBuffer values; // the stored values
+        final DoubleBuffer numbers; // the numbers of the INTEGER and DOUBLE cells
+        final IntBuffer slots; // slot + 1, 0 for a cell without a slot
+        final ByteBuffer kinds; // the kinds of the stored values
+        final ByteBuffer contents; // NONE, TABLE, INTEGER or DOUBLE
+
+        Page() {
+            ByteBuffer memory = ByteBuffer.allocateDirect(PAGE * 22); // zeroed: no slots, empty cells
+            values = memory.slice(0, 8 * PAGE).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            numbers = memory.slice(8 * PAGE, 8 * PAGE).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            slots = memory.slice(16 * PAGE, 4 * PAGE).order(ByteOrder.nativeOrder()).asIntBuffer();
+            kinds = memory.slice(20 * PAGE, PAGE);
+            contents = memory.slice(21 * PAGE, PAGE);
+        }
+    }
+
+    public OffHeapCellStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pages = new Page[(int) (((long) width * height + MASK) >>> SHIFT)];
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public int slot(int x, int y) {
+        Page page = page(x, y);
+        return page == null ? -1 : page.slots.get(local(x, y)) - 1;
+    }
+
+    @Override
+    public int allocate(int x, int y) {
+        int p = (int) (index(x, y) >>> SHIFT);
+        if (pages[p] == null) {
+            pages[p] = new Page();
+        }
+        Page page = pages[p];
+        int i = local(x, y);
+        if (page.slots.get(i) > 0) return page.slots.get(i) - 1;
+        int slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : size++;
+        if ((slot >>> SHIFT) == slotCells.length) {
+            slotCells = Arrays.copyOf(slotCells, slotCells.length * 2);
+        }
+        if (slotCells[slot >>> SHIFT] == null) {
+            slotCells[slot >>> SHIFT] = ByteBuffer.allocateDirect(8 * PAGE).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        slotCells[slot >>> SHIFT].put(slot & MASK, Ex2Sheet.pack(x, y));
+        page.slots.put(i, slot + 1);
+        return slot;
+    }
+
+    @Override
+    public boolean release(int x, int y) {
+        Page page = page(x, y);
+        int i = local(x, y);
+        if (page == null || page.slots.get(i) == 0) return false;
+        int slot = page.slots.get(i) - 1;
+        page.slots.put(i, 0);
+        page.values.put(i, 0);
+        page.kinds.put(i, CellValue.EMPTY);
+        slotCells[slot >>> SHIFT].put(slot & MASK, Ex2Sheet.NOT_A_CELL);
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        return true;
+    }
+
+    @Override
+    public int slots() {
+        return size;
+    }
+
+    @Override
+    public int x(int slot) {
+        return Ex2Sheet.unpackX(slotCells[slot >>> SHIFT].get(slot & MASK));
+    }
+
+    @Override
+    public int y(int slot) {
+        return Ex2Sheet.unpackY(slotCells[slot >>> SHIFT].get(slot & MASK));
+    }
+
+    @Override
+    public SCell cell(int x, int y) {
+        Page page = page(x, y);
+        if (page == null) return null;
+        int i = local(x, y);
+        switch (page.contents.get(i)) {
+            case TABLE:
+                return heapCell(x, y);
+            case INTEGER:
+                double integer = page.numbers.get(i);
+                return SCell.number(Long.toString((long) integer), integer);
+            case DOUBLE:
+                double number = page.numbers.get(i);
+                return SCell.number(Double.toString(number), number);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int type(int x, int y) {
+        Page page = page(x, y);
+        if (page == null) return Ex2Utils.TEXT;
+        switch (page.contents.get(local(x, y))) {
+            case TABLE:
+                return heapCell(x, y).getType();
+            case INTEGER:
+            case DOUBLE:
+                return Ex2Utils.NUMBER;
+            default:
+                return Ex2Utils.TEXT; // empty
+        }
+    }
+
+    @Override
+    public double number(int x, int y) {
+        Page page = page(x, y);
+        int i = local(x, y);
+        return page.contents.get(i) == TABLE ? heapCell(x, y).getNumber() : page.numbers.get(i);
+    }
+
+    @Override
+    public void setCell(int x, int y, SCell cell) {
+        Page page = page(x, y);
+        int i = local(x, y);
+        if (page.contents.get(i) == TABLE) {
+            removeHeapCell(x, y);
+        }
+        byte content = cell == null ? NONE : content(cell);
+        page.contents.put(i, content);
+        if (content == TABLE) {
+            addHeapCell(x, y, cell);
+        } else if (content != NONE) {
+            page.numbers.put(i, cell.getNumber());
+        }
+    }
+
+    @Override
+    public int kind(int x, int y) {
+        Page page = page(x, y);
+        return page == null ? CellValue.EMPTY : page.kinds.get(local(x, y));
+    }
+
+    @Override
+    public double value(int x, int y) {
+        Page page = page(x, y);
+        return page == null ? 0 : page.values.get(local(x, y));
+    }
+
+    @Override
+    public void set(int x, int y, int kind, double value) {
+        Page page = page(x, y);
+        int i = local(x, y);
+        page.values.put(i, value);
+        page.kinds.put(i, (byte) kind);
+    }
+
+    @Override
+    public void copyValues(int x, int y, double[] out, int offset, int len) {
+        while (len > 0) { // one page at a time
+            Page page = page(x, y);
+            int i = local(x, y), n = Math.min(len, PAGE - i);
+            if (page == null) {
+                Arrays.fill(out, offset, offset + n, 0);
+            } else {
+                page.values.get(i, out, offset, n);
+            }
+            y += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void copyKinds(int x, int y, byte[] out, int offset, int len) {
+        while (len > 0) {
+            Page page = page(x, y);
+            int i = local(x, y), n = Math.min(len, PAGE - i);
+            if (page == null) {
+                Arrays.fill(out, offset, offset + n, CellValue.EMPTY);
+            } else {
+                page.kinds.get(i, out, offset, n);
+            }
+            y += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public CellStore empty(int width, int height) {
+        return new OffHeapCellStore(width, height);
+    }
+
+    /**
+     * @return the number of cells kept as objects on the heap (formulas, text and numbers with other texts).
+     */
+    public int heapCells() {
+        return heap.size();
+    }
+
+    // how a cell is kept: a number whose data is the text Long.toString or Double.toString gives it needs no object
+    private static byte content(SCell cell) {
+        if (cell.getType() != Ex2Utils.NUMBER) return TABLE;
+        double v = cell.getNumber();
+        String data = cell.getData();
+        if (v == Math.rint(v) && Math.abs(v) < 1e15 && data.equals(Long.toString((long) v))) return INTEGER;
+        return data.equals(Double.toString(v)) ? DOUBLE : TABLE;
+    }
+
+    private long index(int x, int y) {
+        return (long) x * height + y;
+    }
+
+    private Page page(int x, int y) {
+        return pages[(int) (index(x, y) >>> SHIFT)];
+    }
+
+    private int local(int x, int y) {
+        return (int) index(x, y) & MASK;
+    }
+
+    // the heap cell of x,y, whose content is TABLE
+    private SCell heapCell(int x, int y) {
+        return cells[heap.get(Ex2Sheet.pack(x, y))];
+    }
+
+    private void addHeapCell(int x, int y, SCell cell) {
+        int j;
+        if (freeCount > 0) {
+            j = free[--freeCount];
+        } else {
+            if (cellCount == cells.length) {
+                cells = Arrays.copyOf(cells, cellCount * 2);
+            }
+            j = cellCount++;
+        }
+        cells[j] = cell;
+        heap.put(Ex2Sheet.pack(x, y), j);
+    }
+
+    private void removeHeapCell(int x, int y) {
+        int j = heap.remove(Ex2Sheet.pack(x, y));
+        cells[j] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = j;
+    }
+}
@@ -0,0 +1,126 @@
+package Code;
+
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+/**
+ * A dataflow recalculation of a set of cells on a ForkJoinPool.
+ * Every cell keeps a counter of its precedents (inside the set) which were not computed yet,
+ * the cell is forked as a task as soon as its counter drops to zero - there is no barrier between
+ * dependency levels, idle workers simply steal whatever cell became ready.
+ * A range a cell refers to counts as one precedent, with a counter of its own: the cells of the set in its area
+ * (see DependencyGraph.members) which were not computed yet.
+ */
+public class ParallelRecalc {
+    private final DependencyGraph graph;
+    private final int[] cells;
+    private final int n;
+    private final IntConsumer evaluate;
+    private final AtomicIntegerArray pending; // by position in cells, then by n + the id of an aggregate
+    private int stamp;
+
+    /**
+     * @param graph the dependency graph of the sheet (must not change while running).
+     * @param cells the cells to compute (the first n entries), with no duplicates.
+     * @param evaluate computes a single cell, given its id. Called concurrently for independent cells.
+     */
+    public ParallelRecalc(DependencyGraph graph, int[] cells, int n, IntConsumer evaluate) {
+        this.graph = graph;
+        this.cells = cells;
+        this.n = n;
+        this.evaluate = evaluate;
+        this.pending = new AtomicIntegerArray(n + graph.aggregates());
+    }
+
+    /**
+     * Computes all the cells which are not on a cycle (or depend on one).
+     * @param pool the pool to run on.
+     * @param cyclic an array of at least n entries, filled with the cells that could not be computed.
+     * @return the number of cyclic cells.
+     */
+    public int run(ForkJoinPool pool, int[] cyclic) {
+        stamp = graph.index(cells, n);
+        int[] ready = new int[n]; // the cells with no precedents in the set, collected before any task runs
+        int r = 0;
+        for (int i = 0; i < n; i++) {
+            int k = 0;
+            for (int p : graph.precedents(cells[i])) {
+                if (graph.position(p, stamp) >= 0) k++;
+            }
+            for (int a : graph.ranges(cells[i])) {
+                if (graph.members(a, stamp) > 0) k++;
+            }
+            pending.set(i, k);
+            if (k == 0) ready[r++] = i;
+        }
+        for (int a = 0; a < graph.aggregates(); a++) {
+            pending.set(n + a, graph.members(a, stamp));
+        }
+        pool.invoke(new Root(ready, r));
+
+        // a counter that never reached zero belongs to a cell on (or behind) a cycle
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (pending.get(i) > 0) cyclic[count++] = cells[i];
+        }
+        return count;
+    }
+
+    // forks the initially ready cells; the other cells are forked by their last precedent, each exactly once
+    @SuppressWarnings("serial") // tasks are never serialized
+    private class Root extends CountedCompleter<Void> {
+        private final int[] ready;
+        private final int count;
+
+        Root(int[] ready, int count) {
+            this.ready = ready;
+            this.count = count;
+        }
+
+        @Override
+        public void compute() {
+            for (int i = 0; i < count; i++) {
+                addToPendingCount(1);
+                new CellTask(this, ready[i]).fork();
+            }
+            tryComplete();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class CellTask extends CountedCompleter<Void> {
+        private final int pos;
+
+        CellTask(CountedCompleter<?> parent, int pos) {
+            super(parent);
+            this.pos = pos;
+        }
+
+        @Override
+        public void compute() {
+            int cell = cells[pos];
+            evaluate.accept(cell);
+            for (int i = 0; i < graph.dependentCount(cell); i++) {
+                release(graph.position(graph.dependent(cell, i), stamp));
+            }
+            graph.forEachAggregateAt(cell, a -> {
+                if (pending.decrementAndGet(n + a) == 0) { // the last cell of the set in the area
+                    for (int i = 0; i < graph.userCount(a); i++) {
+                        release(graph.position(graph.user(a, i), stamp));
+                    }
+                }
+            });
+            tryComplete();
+        }
+
+        // one precedent of the cell at position q (if it is in the set) is computed: forks it if it was the last one
+        private void release(int q) {
+            if (q >= 0 && pending.decrementAndGet(q) == 0) {
+                addToPendingCount(1);
+                new CellTask(this, q).fork();
+            }
+        }
+    }
+}
@@ -1,30 +1,120 @@
 package Code;
 
-import net.objecthunter.exp4j.Expression;
-import net.objecthunter.exp4j.ExpressionBuilder;
-
 import java.util.Map;
-import java.util.HashMap;
 
+/**
+ * A cell of an Ex2Sheet, which keeps only its data: the computed values are kept by the store of the sheet.
+ */
 public class SCell implements Cell {
+    private static final int TYPE = 0x7; // the low bits of state are the type + 2 (the types are -2..3)
+    private static final int SHARED = 0x8; // a text cell stored for every cell of a sheet with its text
+
     private String line;
-    private int type;
+    private FormulaPlan plan; // the compiled formula (null if this cell is not a form)
+    private double number; // the parsed data of a NUMBER cell (computed values are kept by the sheet)
     private int order;
-    private Map<String, Double> variables;
-    private boolean visited = false;
+    private byte state;
 
-    public boolean isVisited() {
-        return visited;
+
+    public SCell(String s) {
+        setData(s);
     }
 
-    public void setVisited(boolean visited) {
-        this.visited = visited;
+    private SCell() {
     }
 
+    /**
+     * @return a new NUMBER cell with the given data and its parsed number (see OffHeapCellStore).
+     */
+    static SCell number(String line, double number) {
+        SCell cell = new SCell();
+        cell.line = line;
+        cell.number = number;
+        cell.setType(Ex2Utils.NUMBER);
+        return cell;
+    }
 
-    public SCell(String s) {
-        setData(s);
-        this.variables = new HashMap<>();
+    /**
+     * @return a new shared cell with the given text, see isText.
+     */
+    static SCell text(String s) {
+        SCell cell = new Text(s);
+        cell.state |= SHARED;
+        return cell;
+    }
+
+    // a shared text cell, which counts the cells of its sheet sharing it (the other cells have no use for a count)
+    private static final class Text extends SCell {
+        int users = 0;
+
+        Text(String s) {
+            super(s);
+        }
+    }
+
+    // a copy of a cell of a sheet (see copy), whose data is set through the sheet
+    private static final class Bound extends SCell {
+        private final Ex2Sheet sheet;
+        private final int x, y;
+
+        Bound(Ex2Sheet sheet, int x, int y) {
+            this.sheet = sheet;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public void setData(String s) {
+            sheet.set(x, y, s);
+            setData(s, x, y, null);
+        }
+    }
+
+    /**
+     * Counts one more cell of a sheet sharing this text cell (see text).
+     */
+    void retain() {
+        ((Text) this).users++;
+    }
+
+    /**
+     * Forgets one of the cells sharing this text cell (e.g., a cell whose data was replaced).
+     * @return true iff no cell shares it any more, so the sheet should drop it.
+     */
+    boolean release() {
+        return --((Text) this).users == 0;
+    }
+
+    /**
+     * @return true iff the data s makes a TEXT cell (or an empty one), which can then be shared.
+     */
+    static boolean isText(String s) {
+        return !s.startsWith("=") && !isNumber(s);
+    }
+
+    /**
+     * @return true iff this cell is shared (see text), a sheet hands out copies of its cells (see copy).
+     */
+    boolean isShared() {
+        return (state & SHARED) != 0;
+    }
+
+    /**
+     * @param cell the x,y cell of sheet, null if it is empty.
+     * @return a new cell with the data, type and order of cell, whose setData sets the data of cell through the sheet.
+     */
+    static SCell copy(SCell cell, Ex2Sheet sheet, int x, int y) {
+        SCell copy = new Bound(sheet, x, y);
+        if (cell == null) {
+            copy.assign(Ex2Utils.EMPTY_CELL, x, y, null);
+            return copy;
+        }
+        copy.line = cell.line;
+        copy.plan = cell.plan;
+        copy.number = cell.number;
+        copy.order = cell.order;
+        copy.state = (byte) (cell.state & ~SHARED);
+        return copy;
     }
 
     @Override
@@ -42,22 +132,62 @@ public class SCell implements Cell {
         return getData();
     }
 
+    /**
+     * Sets the data of this cell: the references of a formula are absolute (anchored at 0,0).
+     * The data of a cell returned by Ex2Sheet.get is set through its sheet (see Ex2Sheet.set).
+     */
     @Override
     public void setData(String s) {
+        assign(s, 0, 0, null);
+    }
+
+    /**
+     * Sets the data of the x,y cell of a sheet.
+     * @param templates the formula templates interned by the sheet (see FormulaTemplate.of), null to not share them.
+     */
+    public void setData(String s, int x, int y, Map<String, FormulaTemplate> templates) {
+        assign(s, x, y, templates);
+    }
+
+    private void assign(String s, int x, int y, Map<String, FormulaTemplate> templates) {
         this.line = s;
+        this.plan = null;
         if (s.startsWith("=")) {
-            this.type = Ex2Utils.FORM;
+            setType(Ex2Utils.FORM);
+            this.plan = FormulaPlan.compile(s.substring(1), x, y, templates);
+        } else if (isNumber(s)) {
+            this.number = Double.parseDouble(s);
+            setType(Ex2Utils.NUMBER);
         } else {
+            setType(Ex2Utils.TEXT);
+        }
+    }
+
+
+    /**
+     * @return true iff Double.parseDouble accepts the string (without the cost of a NumberFormatException for text):
+     * optional spaces and sign, then "NaN", "Infinity", or a decimal number with an optional exponent and type suffix.
+     */
+    static boolean isNumber(String s) {
+        s = s.trim();
+        int i = 0, n = s.length();
+        if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+        String rest = s.substring(i);
+        if (rest.equals("NaN") || rest.equals("Infinity")) return true;
+        if (rest.startsWith("0x") || rest.startsWith("0X")) { // hexadecimal floating point, rarely typed
             try {
                 Double.parseDouble(s);
-                this.type = Ex2Utils.NUMBER;
+                return true;
             } catch (NumberFormatException e) {
-                this.type = Ex2Utils.TEXT;
+                return false;
             }
         }
+        if (!rest.isEmpty() && "fFdD".indexOf(rest.charAt(rest.length() - 1)) >= 0) {
+            rest = rest.substring(0, rest.length() - 1);
+        }
+        return FormulaLexer.isDecimal(rest, 0, rest.length());
     }
 
-
     @Override
     public String getData() {
         return line;
@@ -65,60 +195,85 @@ public class SCell implements Cell {
 
     @Override
     public int getType() {
-        return type;
+        return (state & TYPE) - 2;
     }
 
     @Override
     public void setType(int t) {
-        this.type = t;
+        state = (byte) ((state & ~TYPE) | (t + 2));
     }
 
-    public double evaluate(Ex2Sheet sheet, SCell scell) {
-        if (type == Ex2Utils.NUMBER) {
-            return Double.parseDouble(line);
-        } else if (type == Ex2Utils.FORM || type == Ex2Utils.ERR_FORM_FORMAT || type == Ex2Utils.ERR_CYCLE_FORM) {
-            try {
-                String formula = line.substring(1);
-                formula = formula.toUpperCase();
-                variables.clear();
-
-                for (String var : formula.split("[^A-Za-z0-9]")) {
-                    if (var.matches("[A-Za-z]+[0-9]+")) {
-                        int[] coords = sheet.cellCoordinates(var);
-                        if (!sheet.isIn(coords[0], coords[1])) {
-                            scell.setType(Ex2Utils.ERR_FORM_FORMAT);
-                            throw new IllegalArgumentException("Invalid reference: " + var);
-                        }
-                        String refValue = sheet.eval(coords[0], coords[1]);
-                        SCell cell = sheet.get(coords[0],coords[1]);
-                        if (cell.getType() != Ex2Utils.ERR_FORM_FORMAT && cell.getType() != Ex2Utils.ERR){
-                            scell.setType(Ex2Utils.FORM);
-                        }
-
-
-                        if (refValue.equals(Ex2Utils.ERR_CYCLE)) {
-                            scell.setType(Ex2Utils.ERR_CYCLE_FORM);
-                            return Ex2Utils.ERR_CYCLE_FORM;
-                        }
-
-                        variables.put(var, Double.parseDouble(refValue));
-                    }
-                }
-
-                Expression expression = new ExpressionBuilder(formula)
-                        .variables(variables.keySet())
-                        .build();
-
-                variables.forEach(expression::setVariable);
-                return expression.evaluate();
-            } catch (Exception e) {
-                scell.setType(Ex2Utils.ERR_FORM_FORMAT);
-                return Ex2Utils.ERR_FORM_FORMAT;
+    /**
+     * @return the compiled formula of this cell, or null if it is not a form.
+     */
+    public FormulaPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return the number of a NUMBER cell, as parsed (once) when its data was set.
+     */
+    public double getNumber() {
+        return number;
+    }
+
+    /**
+     * Computes this cell from the values of the cells it refers to, as stored in the sheet (which must already be up to date).
+     * The numeric result is kept by the context (see EvalContext.result), the kind of the result (see CellValue) is returned.
+     * @param sheet the sheet of this cell.
+     * @param x the x coordinate of this cell.
+     * @param y the y coordinate of this cell.
+     * @param ctx the evaluation context of the current thread (see EvalContext.current).
+     * @return the kind of the value of this cell.
+     */
+    public int evaluate(Ex2Sheet sheet, int x, int y, EvalContext ctx) {
+        if (getType() == Ex2Utils.NUMBER) {
+            ctx.setResult(number);
+            return CellValue.NUMBER;
+        }
+        if (plan == null) {
+            return CellValue.ERR_FORM;
+        }
+        ctx.begin(x, y, plan.size() + plan.ranges());
+        int error = CellValue.NUMBER; // a reference to a cycle takes precedence over any other error
+        for (int i = 0; i < plan.size(); i++) {
+            int rx = plan.refX(i), ry = plan.refY(i);
+            if (!sheet.isIn(rx, ry)) {
+                error = CellValue.ERR_FORM;
+                continue;
+            }
+            int kind = sheet.storedKind(rx, ry);
+            if (kind == CellValue.ERR_CYCLE) {
+                return CellValue.ERR_CYCLE;
+            }
+            if (kind != CellValue.NUMBER) {
+                error = CellValue.ERR_FORM;
+            } else if (error == CellValue.NUMBER && plan.isValid() && !plan.isCompiled()) {
+                ctx.bind(i, sheet.storedValue(rx, ry));
             }
         }
-
-        scell.setType(Ex2Utils.ERR_FORM_FORMAT);
-        return Ex2Utils.ERR_FORM_FORMAT;
+        for (int i = 0; i < plan.ranges(); i++) {
+            CellRange range = plan.range(i);
+            if (!range.isIn(sheet)) {
+                error = CellValue.ERR_FORM;
+                continue;
+            }
+            range.query(sheet, ctx);
+            int kind = range.kind(ctx);
+            if (kind == CellValue.ERR_CYCLE) {
+                return CellValue.ERR_CYCLE;
+            }
+            if (kind != CellValue.NUMBER) {
+                error = CellValue.ERR_FORM;
+            } else if (error == CellValue.NUMBER && plan.isValid()) {
+                ctx.bind(plan.size() + i, range.value(ctx)); // bound for the compiled tier as well
+            }
+        }
+        if (error != CellValue.NUMBER || !plan.isValid()) {
+            return CellValue.ERR_FORM;
+        }
+        ctx.setResult(plan.evaluate(sheet, ctx));
+        return ctx.failed() ? CellValue.ERR_FORM : CellValue.NUMBER; // a division by zero
     }
 
 }
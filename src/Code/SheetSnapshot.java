@@ -0,0 +1,149 @@
+package Code;
+
+import java.util.Arrays;
+
+/**
+ * An immutable view of the computed values of an Ex2Sheet, as published by its background recalculation
+ * (see Ex2Sheet.setAsync). Snapshots are copy-on-write by column: a new snapshot copies only the columns
+ * that changed since the previous one and shares all the other column arrays with it. The columns of a store
+ * with slots for few of its cells (see SparseCellStore) keep only the rows with slots, the others are empty.
+ */
+public class SheetSnapshot {
+    private static final int SPARSE = 4; // columns are sparse when fewer than 1 / SPARSE of the cells have slots
+
+    private final Column[] columns;
+    private final int height;
+
+    // a column: every row, or (sparse) only the rows in rows
+    private static final class Column {
+        final int[] rows; // sorted, null if the column keeps every row
+        final double[] values;
+        final byte[] kinds;
+        final String[] data; // the data of the cells which are not numbers (a number presents its value)
+        final byte[] types; // the types of the cells (see Ex2Utils), for drawing them
+
+        Column(int[] rows, int n) {
+            this.rows = rows;
+            values = new double[n];
+            kinds = new byte[n];
+            data = new String[n];
+            types = new byte[n];
+        }
+
+        // the index of row y, negative if it is not kept
+        int index(int y) {
+            return rows == null ? y : Arrays.binarySearch(rows, y);
+        }
+    }
+
+    private SheetSnapshot(Column[] columns, int height) {
+        this.columns = columns;
+        this.height = height;
+    }
+
+    /**
+     * @param previous the last published snapshot (null if none, or if its dimensions differ).
+     * @param store the live storage of the sheet.
+     * @param changed the columns to copy, by x (null for all of them).
+     * @return a snapshot of the current state, sharing the unchanged columns with previous.
+     */
+    static SheetSnapshot of(SheetSnapshot previous, CellStore store, boolean[] changed) {
+        int w = store.width(), h = store.height();
+        boolean[] copy = previous == null ? null : changed;
+        int[][] rows = (long) store.slots() * SPARSE < (long) w * h ? rows(store, copy) : null;
+        Column[] columns = new Column[w];
+        for (int x = 0; x < w; x++) {
+            if (copy == null || copy[x]) {
+                columns[x] = rows == null ? column(store, x, null, h) : column(store, x, rows[x], rows[x].length);
+            } else {
+                columns[x] = previous.columns[x];
+            }
+        }
+        return new SheetSnapshot(columns, h);
+    }
+
+    // copies the n rows of column x (all of them if rows is null)
+    private static Column column(CellStore store, int x, int[] rows, int n) {
+        Column column = new Column(rows, n);
+        if (rows == null) {
+            store.copyValues(x, 0, column.values, 0, n);
+            store.copyKinds(x, 0, column.kinds, 0, n);
+        }
+        for (int i = 0; i < n; i++) {
+            int y = rows == null ? i : rows[i];
+            if (rows != null) {
+                column.values[i] = store.value(x, y);
+                column.kinds[i] = (byte) store.kind(x, y);
+            }
+            column.types[i] = (byte) store.type(x, y);
+            if (column.types[i] != Ex2Utils.NUMBER) { // the cell of a number may have to be built by the store
+                SCell cell = store.cell(x, y);
+                column.data[i] = cell == null ? Ex2Utils.EMPTY_CELL : cell.getData();
+            }
+        }
+        return column;
+    }
+
+    // the sorted rows of the cells with slots, by x, in the columns to copy (null for all of them)
+    private static int[][] rows(CellStore store, boolean[] copy) {
+        int w = store.width();
+        int[] counts = new int[w];
+        for (int slot = 0; slot < store.slots(); slot++) {
+            int x = store.x(slot);
+            if (x >= 0 && (copy == null || copy[x])) counts[x]++; // not a free slot
+        }
+        int[][] rows = new int[w][];
+        for (int x = 0; x < w; x++) {
+            if (copy == null || copy[x]) rows[x] = new int[counts[x]];
+            counts[x] = 0;
+        }
+        for (int slot = 0; slot < store.slots(); slot++) {
+            int x = store.x(slot);
+            if (x >= 0 && rows[x] != null) rows[x][counts[x]++] = store.y(slot);
+        }
+        for (int[] column : rows) {
+            if (column != null) Arrays.sort(column);
+        }
+        return rows;
+    }
+
+    public int width() {
+        return columns.length;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public boolean isIn(int x, int y) {
+        return x >= 0 && y >= 0 && x < width() && y < height();
+    }
+
+    /**
+     * @return the String presented for the x,y cell in this snapshot (empty for cells outside of it).
+     */
+    public String value(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+        Column column = columns[x];
+        int i = column.index(y);
+        return i < 0 ? Ex2Utils.EMPTY_CELL : CellValue.toString(column.kinds[i], column.values[i], column.data[i]);
+    }
+
+    public int kindAt(int x, int y) {
+        int i = columns[x].index(y);
+        return i < 0 ? CellValue.EMPTY : columns[x].kinds[i];
+    }
+
+    public double valueAt(int x, int y) {
+        int i = columns[x].index(y);
+        return i < 0 ? 0 : columns[x].values[i];
+    }
+
+    /**
+     * @return the type (see Ex2Utils) of the x,y cell in this snapshot, e.g., Ex2Utils.ERR_CYCLE_FORM for a formula on a cycle.
+     */
+    public int typeAt(int x, int y) {
+        int i = columns[x].index(y);
+        return i < 0 ? Ex2Utils.TEXT : columns[x].types[i];
+    }
+}
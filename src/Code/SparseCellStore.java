@@ -0,0 +1,149 @@
+package Code;
+
+import java.util.Arrays;
+
+/**
+ * A CellStore for large, mostly empty sheets: only cells which were set (or are referenced by a formula) have a slot,
+ * so memory is proportional to them rather than to the dimensions of the sheet.
+ * The slot of a cell is found through a CellKeyMap of its packed coordinates (see Ex2Sheet.pack), with no boxing;
+ * the cell, value and kind of each slot are kept in primitive arrays by slot.
+ */
+public class SparseCellStore implements CellStore {
+    private final int width, height;
+
+    private final CellKeyMap slots = new CellKeyMap(); // by packed coordinates
+
+    // by slot (a free slot has x -1, see release)
+    private int size = 0;
+    private int[] free = new int[8]; // the free slots (the first freeCount entries), reused first
+    private int freeCount = 0;
+    private int[] xs = new int[8], ys = new int[8];
+    private SCell[] cells = new SCell[8];
+    private double[] values = new double[8];
+    private byte[] kinds = new byte[8];
+
+    public SparseCellStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public int slot(int x, int y) {
+        return slots.get(Ex2Sheet.pack(x, y));
+    }
+
+    @Override
+    public int allocate(int x, int y) {
+        int slot = slot(x, y);
+        if (slot >= 0) return slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+            xs[slot] = x;
+            ys[slot] = y;
+            slots.put(Ex2Sheet.pack(x, y), slot);
+            return slot;
+        }
+        if (size == xs.length) {
+            int capacity = size * 2;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            cells = Arrays.copyOf(cells, capacity);
+            values = Arrays.copyOf(values, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+        }
+        slot = size++;
+        xs[slot] = x;
+        ys[slot] = y;
+        slots.put(Ex2Sheet.pack(x, y), slot);
+        return slot;
+    }
+
+    @Override
+    public boolean release(int x, int y) {
+        int slot = slots.remove(Ex2Sheet.pack(x, y));
+        if (slot < 0) return false;
+        xs[slot] = ys[slot] = -1;
+        cells[slot] = null;
+        values[slot] = 0;
+        kinds[slot] = CellValue.EMPTY;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+        return true;
+    }
+
+    @Override
+    public int slots() {
+        return size;
+    }
+
+    @Override
+    public int x(int slot) {
+        return xs[slot];
+    }
+
+    @Override
+    public int y(int slot) {
+        return ys[slot];
+    }
+
+    @Override
+    public SCell cell(int x, int y) {
+        int slot = slot(x, y);
+        return slot < 0 ? null : cells[slot];
+    }
+
+    @Override
+    public void setCell(int x, int y, SCell cell) {
+        cells[slot(x, y)] = cell;
+    }
+
+    @Override
+    public int kind(int x, int y) {
+        int slot = slot(x, y);
+        return slot < 0 ? CellValue.EMPTY : kinds[slot];
+    }
+
+    @Override
+    public double value(int x, int y) {
+        int slot = slot(x, y);
+        return slot < 0 ? 0 : values[slot];
+    }
+
+    @Override
+    public void set(int x, int y, int kind, double value) {
+        int slot = slot(x, y);
+        values[slot] = value;
+        kinds[slot] = (byte) kind;
+    }
+
+    @Override
+    public void copyValues(int x, int y, double[] out, int offset, int len) {
+        for (int i = 0; i < len; i++) {
+            out[offset + i] = value(x, y + i);
+        }
+    }
+
+    @Override
+    public void copyKinds(int x, int y, byte[] out, int offset, int len) {
+        for (int i = 0; i < len; i++) {
+            out[offset + i] = (byte) kind(x, y + i);
+        }
+    }
+
+    @Override
+    public CellStore empty(int width, int height) {
+        return new SparseCellStore(width, height);
+    }
+}
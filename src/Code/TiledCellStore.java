@@ -0,0 +1,201 @@
+package Code;
+
+import java.util.Arrays;
+
+/**
+ * A CellStore of 64x64 tiles: the values, kinds, cells and slots of the cells of a tile are kept in primitive
+ * arrays of the tile, so scanning a row, a column or the neighbourhood of a cell stays within a few small arrays.
+ * A tile is allocated when a slot is first allocated in it, so the empty regions of a large sheet cost only a null
+ * entry in the tile directory. Within a tile the cells are laid out by column, like the columns of DenseCellStore.
+ * As in SparseCellStore, only the cells which were set (or are referenced by a formula) have a slot.
+ */
+public class TiledCellStore implements CellStore {
+    private static final int SHIFT = 6, SIZE = 1 << SHIFT, MASK = SIZE - 1; // 64x64 cells per tile
+
+    private final int width, height;
+    private final int tilesDown; // the number of tiles in a column of tiles
+    private final Tile[] tiles; // by (x / 64) * tilesDown + y / 64, null until a cell of the tile gets a slot
+
+    // by slot (a free slot has x -1, see release)
+    private int size = 0;
+    private int[] xs = new int[8], ys = new int[8];
+    private int[] free = new int[8]; // the free slots (the first freeCount entries), reused first
+    private int freeCount = 0;
+
+    private static final class Tile {
+        final double[] values = new double[SIZE * SIZE];
+        final byte[] kinds = new byte[SIZE * SIZE];
+        final SCell[] cells = new SCell[SIZE * SIZE];
+        final int[] slots = new int[SIZE * SIZE]; // slot + 1, 0 for a cell without a slot
+    }
+
+    public TiledCellStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.tilesDown = (height + MASK) >> SHIFT;
+        this.tiles = new Tile[((width + MASK) >> SHIFT) * tilesDown];
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public int slot(int x, int y) {
+        Tile tile = tile(x, y);
+        return tile == null ? -1 : tile.slots[local(x, y)] - 1;
+    }
+
+    @Override
+    public int allocate(int x, int y) {
+        int t = (x >> SHIFT) * tilesDown + (y >> SHIFT);
+        Tile tile = tiles[t];
+        if (tile == null) {
+            tile = new Tile();
+            tiles[t] = tile;
+        }
+        int i = local(x, y);
+        if (tile.slots[i] > 0) return tile.slots[i] - 1;
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (size == xs.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            slot = size++;
+        }
+        xs[slot] = x;
+        ys[slot] = y;
+        tile.slots[i] = slot + 1;
+        return slot;
+    }
+
+    @Override
+    public boolean release(int x, int y) {
+        Tile tile = tile(x, y);
+        int i = local(x, y);
+        if (tile == null || tile.slots[i] == 0) return false;
+        int slot = tile.slots[i] - 1;
+        tile.slots[i] = 0;
+        tile.cells[i] = null;
+        tile.values[i] = 0;
+        tile.kinds[i] = CellValue.EMPTY;
+        xs[slot] = ys[slot] = -1;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+        return true;
+    }
+
+    @Override
+    public int slots() {
+        return size;
+    }
+
+    @Override
+    public int x(int slot) {
+        return xs[slot];
+    }
+
+    @Override
+    public int y(int slot) {
+        return ys[slot];
+    }
+
+    @Override
+    public SCell cell(int x, int y) {
+        Tile tile = tile(x, y);
+        return tile == null ? null : tile.cells[local(x, y)];
+    }
+
+    @Override
+    public void setCell(int x, int y, SCell cell) {
+        tile(x, y).cells[local(x, y)] = cell;
+    }
+
+    @Override
+    public int kind(int x, int y) {
+        Tile tile = tile(x, y);
+        return tile == null ? CellValue.EMPTY : tile.kinds[local(x, y)];
+    }
+
+    @Override
+    public double value(int x, int y) {
+        Tile tile = tile(x, y);
+        return tile == null ? 0 : tile.values[local(x, y)];
+    }
+
+    @Override
+    public void set(int x, int y, int kind, double value) {
+        Tile tile = tile(x, y);
+        int i = local(x, y);
+        tile.values[i] = value;
+        tile.kinds[i] = (byte) kind;
+    }
+
+    @Override
+    public void copyValues(int x, int y, double[] out, int offset, int len) {
+        while (len > 0) { // one tile at a time
+            int n = Math.min(len, SIZE - (y & MASK));
+            Tile tile = tile(x, y);
+            if (tile == null) {
+                Arrays.fill(out, offset, offset + n, 0);
+            } else {
+                System.arraycopy(tile.values, local(x, y), out, offset, n);
+            }
+            y += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void copyKinds(int x, int y, byte[] out, int offset, int len) {
+        while (len > 0) {
+            int n = Math.min(len, SIZE - (y & MASK));
+            Tile tile = tile(x, y);
+            if (tile == null) {
+                Arrays.fill(out, offset, offset + n, CellValue.EMPTY);
+            } else {
+                System.arraycopy(tile.kinds, local(x, y), out, offset, n);
+            }
+            y += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public CellStore empty(int width, int height) {
+        return new TiledCellStore(width, height);
+    }
+
+    /**
+     * @return the number of tiles allocated so far (for tests and memory estimates).
+     */
+    public int tiles() {
+        int n = 0;
+        for (Tile tile : tiles) {
+            if (tile != null) n++;
+        }
+        return n;
+    }
+
+    private Tile tile(int x, int y) {
+        return tiles[(x >> SHIFT) * tilesDown + (y >> SHIFT)];
+    }
+
+    // the index of the x,y cell in the arrays of its tile, by column
+    private static int local(int x, int y) {
+        return ((x & MASK) << SHIFT) | (y & MASK);
+    }
+}